@@ -0,0 +1,41 @@
+package org.dimdev.javaremapper;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+
+/** Builds the inheritance map of a synthetic jar **/
+@State(Scope.Benchmark)
+public class InheritanceBenchmark {
+    @Param({"10000"})
+    public int classCount;
+
+    @Param({"10"})
+    public int hierarchyDepth;
+
+    @Param({"20"})
+    public int methodsPerClass;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private File jarFile;
+
+    @Setup
+    public void setup() throws IOException {
+        jarFile = File.createTempFile("synthetic", ".jar");
+        jarFile.deleteOnExit();
+        new SyntheticJar(classCount, hierarchyDepth, methodsPerClass).write(jarFile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        jarFile.delete();
+    }
+
+    @Benchmark
+    public InheritanceProvider makeInheritanceProvider() throws IOException {
+        return JavaRemapper.makeInheritanceProvider(jarFile, threads);
+    }
+}
@@ -0,0 +1,51 @@
+package org.dimdev.javaremapper;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/** Reads synthetic JAM files, and looks up entries of the loaded mapping **/
+@State(Scope.Benchmark)
+public class MappingBenchmark {
+    @Param({"100000", "400000"})
+    public int entryCount;
+
+    private String jam;
+    private Mapping mapping;
+    private String[] classNames = new String[100];
+    private String[] methodNames = new String[10];
+    private String[] fieldNames = new String[10];
+
+    @Setup
+    public void setup() throws IOException {
+        jam = SyntheticJar.generateJAM(entryCount);
+        mapping = new Mapping();
+        mapping.readFromJAM(new StringReader(jam));
+
+        for (int i = 0; i < classNames.length; i++) classNames[i] = "synthetic/C" + i;
+        for (int i = 0; i < methodNames.length; i++) methodNames[i] = "m" + i;
+        for (int i = 0; i < fieldNames.length; i++) fieldNames[i] = "f" + i;
+    }
+
+    @Benchmark
+    public Mapping readFromJAM() throws IOException {
+        Mapping result = new Mapping();
+        result.readFromJAM(new StringReader(jam));
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public int lookups() {
+        int hash = 0;
+        for (int i = 0; i < 1000; i++) {
+            String className = classNames[i % classNames.length];
+            hash += mapping.mapClass(className).hashCode();
+            hash += mapping.mapMethod(className, methodNames[i % methodNames.length], "(IJ)I").hashCode();
+            hash += mapping.mapField(className, fieldNames[i % fieldNames.length], "I").hashCode();
+            hash += mapping.mapParameter(className, methodNames[i % methodNames.length], "(IJ)I", 1).hashCode();
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,47 @@
+package org.dimdev.javaremapper;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/** Remaps every class of a synthetic jar, with a warm SimpleRemapper **/
+@State(Scope.Benchmark)
+public class RemapClassBenchmark {
+    @Param({"1000"})
+    public int classCount;
+
+    @Param({"1", "10"})
+    public int hierarchyDepth;
+
+    @Param({"20"})
+    public int methodsPerClass;
+
+    private JavaRemapper javaRemapper;
+    private SimpleRemapper remapper;
+    private List<String> names = new ArrayList<>();
+    private List<byte[]> classes = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        SyntheticJar jar = new SyntheticJar(classCount, hierarchyDepth, methodsPerClass);
+        javaRemapper = new JavaRemapper(jar.mapping);
+        remapper = new SimpleRemapper(jar.mapping, jar.makeInheritanceProvider());
+        for (Map.Entry<String, byte[]> entry : jar.classes.entrySet()) {
+            names.add(entry.getKey());
+            classes.add(entry.getValue());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public int remapClasses() {
+        int size = 0;
+        for (int i = 0; i < 1000; i++) {
+            int index = i % classes.size();
+            size += javaRemapper.remapClass(names.get(index), classes.get(index), remapper).length;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,65 @@
+package org.dimdev.javaremapper;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Resolves inherited method names, both through SimpleRemapper's cache and by walking the hierarchy **/
+@State(Scope.Benchmark)
+public class SimpleRemapperBenchmark {
+    @Param({"1000"})
+    public int classCount;
+
+    @Param({"1", "10", "50"})
+    public int hierarchyDepth;
+
+    @Param({"20"})
+    public int methodsPerClass;
+
+    private Mapping mapping;
+    private InheritanceProvider inheritanceProvider;
+    private SimpleRemapper warmRemapper;
+    private String[] owners;
+    private String[] names;
+
+    @Setup
+    public void setup() {
+        SyntheticJar jar = new SyntheticJar(classCount, hierarchyDepth, methodsPerClass);
+        mapping = jar.mapping;
+        inheritanceProvider = jar.makeInheritanceProvider();
+        warmRemapper = new SimpleRemapper(mapping, inheritanceProvider);
+
+        owners = new String[classCount * methodsPerClass];
+        names = new String[classCount * methodsPerClass];
+        int i = 0;
+        for (String owner : jar.classes.keySet()) {
+            for (int j = 0; j < methodsPerClass; j++) {
+                owners[i] = owner;
+                names[i] = "m" + j;
+                warmRemapper.mapMethodName(owner, names[i], "(IJ)I");
+                i++;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public int mapMethodNameCached() {
+        int hash = 0;
+        for (int i = 0; i < 1000; i++) {
+            int index = i * 31 % owners.length;
+            hash += warmRemapper.mapMethodName(owners[index], names[index], "(IJ)I").hashCode();
+        }
+        return hash;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public int mapMethodNameUncached() {
+        SimpleRemapper remapper = new SimpleRemapper(mapping, inheritanceProvider);
+        int hash = 0;
+        for (int i = 0; i < 1000; i++) {
+            int index = i * 31 % owners.length;
+            hash += remapper.mapMethodName(owners[index], names[index], "(IJ)I").hashCode();
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,109 @@
+package org.dimdev.javaremapper;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates classes for the benchmarks. Classes form inheritance chains of the given depth, each class overrides
+ * its superclass's methods, and every method calls a method and reads a field of the class's superclass.
+ */
+public final class SyntheticJar {
+    public final Map<String, byte[]> classes = new LinkedHashMap<>();
+    public final Mapping mapping = new Mapping();
+
+    public SyntheticJar(int classCount, int hierarchyDepth, int methodsPerClass) {
+        for (int i = 0; i < classCount; i++) {
+            String name = getClassName(i);
+            boolean isRoot = i % hierarchyDepth == 0;
+            String superName = isRoot ? "java/lang/Object" : getClassName(i - 1);
+            classes.put(name, generateClass(name, superName, methodsPerClass));
+
+            // Overriding methods and inherited fields take their names from the root class of the chain
+            mapping.addClass(name, "mapped/M" + i);
+            if (isRoot) {
+                for (int j = 0; j < methodsPerClass; j++) {
+                    mapping.addField(name, "f" + j, "I", "field_" + i + "_" + j);
+                    mapping.addMethod(name, "m" + j, "(IJ)I", "method_" + i + "_" + j);
+                    mapping.addParameter(name, "m" + j, "(IJ)I", 0, "first");
+                    mapping.addParameter(name, "m" + j, "(IJ)I", 1, "second");
+                }
+            }
+        }
+    }
+
+    /** Generates a JAM file with at least the given number of entries **/
+    public static String generateJAM(int entryCount) {
+        int methodsPerClass = 10;
+        SyntheticJar jar = new SyntheticJar(entryCount / (methodsPerClass * 4) + 1, 1, methodsPerClass);
+        StringWriter writer = new StringWriter();
+        jar.mapping.writeToJAM(writer);
+        return writer.toString();
+    }
+
+    public void write(File file) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey() + ".class"));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+    }
+
+    public InheritanceProvider makeInheritanceProvider() {
+        InheritanceMapper inheritanceMapper = new InheritanceMapper();
+        for (byte[] data : classes.values()) inheritanceMapper.visitClass(data);
+        return inheritanceMapper;
+    }
+
+    private static String getClassName(int index) {
+        return "synthetic/C" + index;
+    }
+
+    private static byte[] generateClass(String name, String superName, int methodsPerClass) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, superName, null);
+
+        MethodVisitor constructor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+        constructor.visitInsn(Opcodes.RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+
+        for (int j = 0; j < methodsPerClass; j++) {
+            writer.visitField(Opcodes.ACC_PUBLIC, "f" + j, "I", null, null).visitEnd();
+
+            MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, "m" + j, "(IJ)I", null, null);
+            method.visitCode();
+            if (superName.equals("java/lang/Object")) {
+                method.visitVarInsn(Opcodes.ILOAD, 1);
+            } else {
+                method.visitVarInsn(Opcodes.ALOAD, 0);
+                method.visitVarInsn(Opcodes.ILOAD, 1);
+                method.visitVarInsn(Opcodes.LLOAD, 2);
+                method.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "m" + j, "(IJ)I", false);
+                method.visitVarInsn(Opcodes.ALOAD, 0);
+                method.visitFieldInsn(Opcodes.GETFIELD, superName, "f" + j, "I");
+                method.visitInsn(Opcodes.IADD);
+            }
+            method.visitInsn(Opcodes.IRETURN);
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+        }
+
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,232 @@
+package org.dimdev.javaremapper;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * A read-only mapping that is queried directly from a memory-mapped binary mapping file, without
+ * loading it into memory.
+ *
+ * The file starts with a header (magic, version, then the offset and slot count of the class, field,
+ * method, parameter and local tables), followed by a string pool (see StringPool) and the tables. The
+ * tables are open-addressing hash tables with slots of six ints: the key's hash, up to three key string
+ * offsets, a parameter or local index, and the value's string offset (0 for empty slots).
+ */
+public class BinaryMapping implements ReadableMapping {
+    public static final int MAGIC = 0x4A524D42; // "JRMB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 + 5 * 8;
+    private static final int SLOT_SIZE = 6 * 4;
+    private static final int CLASSES = 0;
+    private static final int FIELDS = 1;
+    private static final int METHODS = 2;
+    private static final int PARAMETERS = 3;
+    private static final int LOCALS = 4;
+
+    private final ByteBuffer buffer;
+    private final int[] tableOffsets = new int[5];
+    private final int[] tableSlots = new int[5];
+
+    public BinaryMapping(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Binary mapping file is too large");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) throw new IOException("Not a binary mapping file");
+        if (buffer.getInt(4) != VERSION) throw new IOException("Unsupported binary mapping version " + buffer.getInt(4));
+        for (int table = 0; table < 5; table++) {
+            tableOffsets[table] = buffer.getInt(8 + table * 8);
+            tableSlots[table] = buffer.getInt(12 + table * 8);
+        }
+    }
+
+    public static boolean isBinaryMapping(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getClass(String className) {
+        return find(CLASSES, className, null, null, 0);
+    }
+
+    @Override
+    public String getField(String className, String fieldName, String fieldDescriptor) {
+        String newName = find(FIELDS, className, fieldName, fieldDescriptor, 0);
+        if (newName != null) return newName;
+
+        return find(FIELDS, className, fieldName, "*", 0);
+    }
+
+    @Override
+    public String getMethod(String className, String methodName, String methodDescriptor) {
+        return find(METHODS, className, methodName, methodDescriptor, 0);
+    }
+
+    @Override
+    public String getParameter(String className, String methodName, String methodDescriptor, int index) {
+        return find(PARAMETERS, className, methodName, methodDescriptor, index);
+    }
+
+    @Override
+    public String getLocal(String className, String methodName, String methodDescriptor, int index) {
+        return find(LOCALS, className, methodName, methodDescriptor, index);
+    }
+
+    @Override
+    public byte[] getFingerprint() {
+        MessageDigest digest = RemapCache.newDigest();
+        digest.update(buffer.duplicate());
+        return digest.digest();
+    }
+
+    @Override
+    public Set<String> getMappedNames() {
+        Set<String> names = new HashSet<>();
+        for (int table = 0; table < 5; table++) {
+            for (int slot = 0; slot < tableSlots[table]; slot++) {
+                int position = tableOffsets[table] + slot * SLOT_SIZE;
+                if (buffer.getInt(position + 20) == 0) continue;
+
+                // Fields and methods are renamed by name, everything else by class
+                boolean member = table == FIELDS || table == METHODS;
+                names.add(readString(buffer.getInt(position + (member ? 8 : 4))));
+            }
+        }
+        return names;
+    }
+
+    /** Loads all entries into an in-memory mapping **/
+    @Override
+    public Mapping toMapping() {
+        Mapping mapping = new Mapping();
+        for (int table = 0; table < 5; table++) {
+            for (int slot = 0; slot < tableSlots[table]; slot++) {
+                int position = tableOffsets[table] + slot * SLOT_SIZE;
+                int value = buffer.getInt(position + 20);
+                if (value == 0) continue;
+
+                String key0 = readString(buffer.getInt(position + 4));
+                String key1 = table == CLASSES ? null : readString(buffer.getInt(position + 8));
+                String key2 = table == CLASSES ? null : readString(buffer.getInt(position + 12));
+                int index = buffer.getInt(position + 16);
+                switch (table) {
+                    case CLASSES: mapping.addClass(key0, readString(value)); break;
+                    case FIELDS: mapping.addField(key0, key1, key2, readString(value)); break;
+                    case METHODS: mapping.addMethod(key0, key1, key2, readString(value)); break;
+                    case PARAMETERS: mapping.addParameter(key0, key1, key2, index, readString(value)); break;
+                    case LOCALS: mapping.addLocal(key0, key1, key2, index, readString(value)); break;
+                }
+            }
+        }
+        return mapping;
+    }
+
+    private String find(int table, String key0, String key1, String key2, int index) {
+        int slots = tableSlots[table];
+        if (slots == 0) return null;
+
+        int hash = hash(key0, key1, key2, index);
+        int mask = slots - 1;
+        for (int slot = StringPool.mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int position = tableOffsets[table] + slot * SLOT_SIZE;
+            int value = buffer.getInt(position + 20);
+            if (value == 0) return null;
+
+            if (buffer.getInt(position) == hash &&
+                buffer.getInt(position + 16) == index &&
+                stringEquals(buffer.getInt(position + 4), key0) &&
+                (key1 == null || stringEquals(buffer.getInt(position + 8), key1)) &&
+                (key2 == null || stringEquals(buffer.getInt(position + 12), key2))) {
+                return readString(value);
+            }
+        }
+    }
+
+    private boolean stringEquals(int offset, String value) {
+        return StringPool.equals(buffer, offset, value);
+    }
+
+    private String readString(int offset) {
+        return StringPool.read(buffer, offset);
+    }
+
+    private static int hash(String key0, String key1, String key2, int index) {
+        int hash = key0.hashCode();
+        hash = 31 * hash + (key1 == null ? 0 : key1.hashCode());
+        hash = 31 * hash + (key2 == null ? 0 : key2.hashCode());
+        return 31 * hash + index;
+    }
+
+    /** Writes a mapping in the binary format **/
+    public static void write(Mapping mapping, OutputStream outputStream) throws IOException {
+        // Collect the entries of each table, as strings followed by the index
+        List<List<Object[]>> tables = new ArrayList<>();
+        for (int table = 0; table < 5; table++) tables.add(new ArrayList<>());
+        for (Map.Entry<String, String> entry : mapping.classes.entrySet()) {
+            tables.get(CLASSES).add(new Object[]{entry.getKey(), null, null, 0, entry.getValue()});
+        }
+        mapping.fieldTable.forEach((className, name, descriptor, newName) -> tables.get(FIELDS).add(new Object[]{className, name, descriptor, 0, newName}));
+        mapping.methodTable.forEach((className, name, descriptor, newName) -> tables.get(METHODS).add(new Object[]{className, name, descriptor, 0, newName}));
+        for (int table : new int[]{PARAMETERS, LOCALS}) {
+            (table == PARAMETERS ? mapping.parameterTable : mapping.localTable).forEach((className, name, descriptor, names) -> {
+                for (int index = 0; index < names.length; index++) {
+                    if (names[index] != null) tables.get(table).add(new Object[]{className, name, descriptor, index, names[index]});
+                }
+            });
+        }
+
+        // The string pool starts right after the header, so that no string has offset 0
+        StringPool pool = new StringPool(HEADER_SIZE);
+
+        // Build the tables, with at most half of the slots used
+        int[] tableSlots = new int[5];
+        int[][] tableData = new int[5][];
+        for (int table = 0; table < 5; table++) {
+            List<Object[]> entries = tables.get(table);
+            int slots = entries.isEmpty() ? 0 : Integer.highestOneBit(entries.size() * 2 - 1) << 1;
+            int[] data = new int[slots * 6];
+            for (Object[] entry : entries) {
+                String key0 = (String) entry[0];
+                String key1 = (String) entry[1];
+                String key2 = (String) entry[2];
+                int index = (Integer) entry[3];
+                int hash = hash(key0, key1, key2, index);
+
+                int slot = StringPool.mix(hash) & (slots - 1);
+                while (data[slot * 6 + 5] != 0) slot = (slot + 1) & (slots - 1);
+                data[slot * 6] = hash;
+                data[slot * 6 + 1] = pool.add(key0);
+                data[slot * 6 + 2] = key1 == null ? 0 : pool.add(key1);
+                data[slot * 6 + 3] = key2 == null ? 0 : pool.add(key2);
+                data[slot * 6 + 4] = index;
+                data[slot * 6 + 5] = pool.add((String) entry[4]);
+            }
+            tableSlots[table] = slots;
+            tableData[table] = data;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        int offset = HEADER_SIZE + pool.size();
+        for (int table = 0; table < 5; table++) {
+            out.writeInt(offset);
+            out.writeInt(tableSlots[table]);
+            offset += tableSlots[table] * SLOT_SIZE;
+        }
+        pool.writeTo(out);
+        for (int[] data : tableData) {
+            for (int value : data) out.writeInt(value);
+        }
+        out.flush();
+    }
+}
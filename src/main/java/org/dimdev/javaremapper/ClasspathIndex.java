@@ -0,0 +1,119 @@
+package org.dimdev.javaremapper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * Indexes the classes of library jars and directories by name, so that they can be found without
+ * searching every library. The index is built once, and class data is only read when it's requested,
+ * from any number of threads.
+ */
+public class ClasspathIndex implements Closeable {
+    private final List<File> libraries;
+    private final List<MappedJar> jars = new ArrayList<>();
+    private final Map<String, ClassLocation> classes = new HashMap<>();
+
+    public ClasspathIndex(List<File> libraries, int threads) throws IOException {
+        this.libraries = new ArrayList<>(libraries);
+
+        // Index the libraries in parallel, then merge them in order, so that earlier libraries take precedence
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Map<String, ClassLocation>>> indexes = new ArrayList<>();
+            for (File library : libraries) {
+                indexes.add(workers.submit(() -> library.isDirectory() ? indexDirectory(library) : indexJar(library)));
+            }
+
+            for (Future<Map<String, ClassLocation>> index : indexes) {
+                for (Map.Entry<String, ClassLocation> entry : Futures.waitFor(index).entrySet()) {
+                    classes.putIfAbsent(entry.getKey(), entry.getValue());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /** Gets the bytes of a class, or null if no library contains it **/
+    public byte[] getClassData(String name) throws IOException {
+        ClassLocation location = classes.get(name);
+        if (location == null) return null;
+        return location.jar != null ? location.jar.getData(location.entry) : Files.readAllBytes(location.file);
+    }
+
+    /** Gets the library jar or directory a class is read from, or null if no library contains it **/
+    public File getLibrary(String name) {
+        ClassLocation location = classes.get(name);
+        return location == null ? null : location.library;
+    }
+
+    public List<File> getLibraries() {
+        return Collections.unmodifiableList(libraries);
+    }
+
+    public boolean contains(String name) {
+        return classes.containsKey(name);
+    }
+
+    public int size() {
+        return classes.size();
+    }
+
+    private Map<String, ClassLocation> indexJar(File file) throws IOException {
+        MappedJar jar = new MappedJar(file);
+        synchronized (jars) {
+            jars.add(jar);
+        }
+
+        Map<String, ClassLocation> index = new HashMap<>();
+        for (MappedJar.Entry entry : jar.getEntries()) {
+            if (entry.name.endsWith(".class")) {
+                index.putIfAbsent(entry.name.substring(0, entry.name.length() - 6), new ClassLocation(file, jar, entry, null));
+            }
+        }
+        return index;
+    }
+
+    private static Map<String, ClassLocation> indexDirectory(File library) throws IOException {
+        Path directory = library.toPath();
+        Map<String, ClassLocation> index = new HashMap<>();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.filter(file -> file.toString().endsWith(".class")).forEach(file -> {
+                String name = directory.relativize(file).toString().replace(File.separatorChar, '/');
+                index.put(name.substring(0, name.length() - 6), new ClassLocation(library, null, null, file));
+            });
+        }
+        return index;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (jars) {
+            for (MappedJar jar : jars) jar.close();
+            jars.clear();
+        }
+    }
+
+    private static class ClassLocation {
+        public final File library;
+        public final MappedJar jar;
+        public final MappedJar.Entry entry;
+        public final Path file;
+
+        public ClassLocation(File library, MappedJar jar, MappedJar.Entry entry, Path file) {
+            this.library = library;
+            this.jar = jar;
+            this.entry = entry;
+            this.file = file;
+        }
+    }
+}
@@ -3,40 +3,89 @@ package org.dimdev.javaremapper;
 import org.dimdev.srg2jam.Srg2Jam;
 
 import java.io.*;
-import java.util.Enumeration;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.*;
+import java.util.zip.Deflater;
 
 public final class CommandLine {
+    private static final Set<String> BOOLEAN_OPTIONS = new HashSet<>(Arrays.asList("skip-unmapped", "verbose"));
+
     public static void main(String... args) throws IOException {
         if (args.length == 0 || args[0].equalsIgnoreCase("help")) {
             System.out.println("JavaRemapper - Tool for remapping obfuscated jar files");
             System.out.println("JAM format specification: https://github.com/caseif/JAM");
             System.out.println();
             System.out.println("Subcommands:");
-            System.out.println(" remap <jar> <target> <mappings> - Remaps a jar file using a JAM mapping file");
-            System.out.println(" rename <jar> <target> <mappings> - Generates mappings with unique identifiers for everything");
-            System.out.println(" srg2jam <path to MCP config folder> - Converts a MCP config folder to a JAM file");
+            System.out.println(" remap <jar> <target> <mappings...> [options] - Remaps a jar file using JAM or binary mapping files, applied one after another");
+            System.out.println(" multiremap <jar> <target> <mappings> [<target> <mappings>...] [options] - Remaps a jar with several mappings at once, reading it once; mapping files applied one after another are separated by '" + File.pathSeparator + "'");
+            System.out.println(" rename <jar> <target> <mappings> [options] - Generates mappings with unique identifiers for everything");
+            System.out.println(" srg2jam <path to MCP config folder> [output dir] [--format jam|binary] - Converts a MCP config folder to notch-srg and notch-mcp mapping files");
+            System.out.println(" serve [options] - Runs remap jobs sent by the client subcommand, keeping mappings and library inheritance loaded");
+            System.out.println(" client remap <jar> <target> <mappings...> [options] - Sends a remap job to a server run by the same user");
+            System.out.println(" snapshot <dir> [jars...] - Saves inheritance snapshots of the running JDK and of the jars, for use with --snapshots");
+            System.out.println(" jam2bin <mappings> <target> - Converts a JAM file to a binary mapping file, which remap can use directly");
+            System.out.println(" compose <target> <mappings...> - Combines mappings applied one after another into a single JAM file");
+            System.out.println(" invert <mappings> <target> - Writes a JAM file mapping the new names of a mapping back to the original names");
             System.out.println(" help - Displays this help message");
+            System.out.println();
+            System.out.println("Remap and rename options:");
+            System.out.println(" --threads <n> - Number of threads remapping classes in parallel (default 1)");
+            System.out.println(" --cache <dir> - Reuses classes remapped by previous runs with the same mappings (remap and multiremap only)");
+            System.out.println(" --cache-size <MB> - Maximum size of the cache directory (default 1024)");
+            System.out.println(" --snapshots <dir> - Reuses the inheritance of jars scanned by previous runs, and of the JDK and libraries");
+            System.out.println(" --skip-unmapped [true|false] - Copies classes referring to no mapped names as they are, without adding parameter and local names (remap and multiremap only)");
+            System.out.println(" --compression <0-9|stored> - Deflate level of the written jar, stored writes every entry uncompressed (default 6)");
+            System.out.println(" --max-in-flight <MB> - Maximum size of entries read but not written yet, reading waits for remapping and writing to catch up (default unlimited)");
+            System.out.println(" --verbose [true|false] - Prints every entry written and warnings about the mappings and LVTs");
+            System.out.println(" --stats <file> - Writes counters and phase times as JSON to a file, or to the console if the file is -");
+            System.out.println(" --port <port> - Port of the server, for serve and client (default " + RemapServer.DEFAULT_PORT + ")");
+            System.out.println(" --libraries <paths> - Jars and class directories the jar depends on, separated by '" + File.pathSeparator + "'");
             return;
         }
 
+        String[] originalArgs = args;
+        Map<String, String> options = new HashMap<>();
+        args = parseOptions(args, options);
+        int threads = Integer.parseInt(options.getOrDefault("threads", "1"));
+
         switch (args[0].toLowerCase()) {
             case "remap": {
                 File inputFile = new File(args[1]);
                 File remapTarget = new File(args[2]);
-                File mappingFile = new File(args[3]);
-
                 if (remapTarget.exists()) remapTarget.delete();
 
-                Mapping mapping = new Mapping();
-                try (Reader reader = new FileReader(mappingFile)) {
-                    mapping.readFromJAM(reader);
+                ReadableMapping mapping = readMappings(Arrays.copyOfRange(args, 3, args.length));
+                JavaRemapper remapper = new JavaRemapper(mapping, threads);
+                configureRemapper(remapper, options);
+                if (options.containsKey("snapshots")) remapper.snapshotDirectory = new File(options.get("snapshots"));
+                configureOutput(remapper, options);
+                try (ClasspathIndex classpath = readClasspath(options, threads)) {
+                    remapper.classpath = classpath;
+                    remapper.remapJar(inputFile, remapTarget);
+                }
+                writeStats(remapper, options);
+                break;
+            }
+
+            case "multiremap": {
+                if (args.length < 4 || args.length % 2 != 0) throw new IllegalArgumentException("Usage: multiremap <jar> <target> <mappings> [<target> <mappings>...]");
+                File inputFile = new File(args[1]);
+
+                Map<File, ReadableMapping> targets = new LinkedHashMap<>();
+                for (int i = 2; i < args.length; i += 2) {
+                    File remapTarget = new File(args[i]);
+                    if (remapTarget.exists()) remapTarget.delete();
+                    targets.put(remapTarget, readMappings(args[i + 1].split(File.pathSeparator)));
                 }
 
-                new JavaRemapper(mapping).remapJar(inputFile, remapTarget);
+                JavaRemapper remapper = new JavaRemapper(null, threads);
+                configureRemapper(remapper, options);
+                if (options.containsKey("snapshots")) remapper.snapshotDirectory = new File(options.get("snapshots"));
+                configureOutput(remapper, options);
+                try (ClasspathIndex classpath = readClasspath(options, threads)) {
+                    remapper.classpath = classpath;
+                    remapper.remapJar(inputFile, targets);
+                }
+                writeStats(remapper, options);
                 break;
             }
 
@@ -48,30 +97,91 @@ public final class CommandLine {
                 if (remapTarget.exists()) remapTarget.delete();
                 if (mappingTarget.exists()) mappingTarget.delete();
 
-                Set<String> classesInJar = new HashSet<>();
-                try (JarFile jar = new JarFile(inputFile)) {
-                    Enumeration<JarEntry> entries = jar.entries();
-                    do {
-                        JarEntry entry = entries.nextElement();
-                        String name = entry.getName();
-                        if (name.endsWith(".class")) {
-                            String className = name.substring(0, name.length() - 6);
-                            classesInJar.add(className);
-                        }
-                    } while (entries.hasMoreElements());
+                Mapping mapping;
+                try (ClasspathIndex classpath = readClasspath(options, threads)) {
+                    File snapshotDirectory = options.containsKey("snapshots") ? new File(options.get("snapshots")) : null;
+                    long start = System.nanoTime();
+                    // The jar's members are collected while it's scanned, rather than reading it again
+                    GeneratingMapping.DeclaredClasses declaredClasses = new GeneratingMapping.DeclaredClasses();
+                    InheritanceProvider inheritanceProvider = JavaRemapper.makeInheritanceProvider(inputFile, threads, classpath, snapshotDirectory, declaredClasses);
+                    mapping = new GeneratingMapping(declaredClasses, inheritanceProvider, threads);
+                    long indexTime = System.nanoTime() - start;
+
+                    JavaRemapper remapper = new JavaRemapper(mapping, threads);
+                    remapper.stats.addTime(RemapStats.Phase.INDEX, indexTime);
+                    remapper.stats.wallTime.add(indexTime);
+                    configureCompression(remapper, options);
+                    remapper.maxBytesInFlight = Long.parseLong(options.getOrDefault("max-in-flight", "0")) * 1024 * 1024;
+                    configureOutput(remapper, options);
+                    remapper.remapJar(inputFile, remapTarget, inheritanceProvider);
+                    writeStats(remapper, options);
                 }
 
-                InheritanceProvider inheritanceProvider = JavaRemapper.makeInheritanceProvider(inputFile);
-                Mapping mapping = new GeneratingMapping(inheritanceProvider, classesInJar);
-                new JavaRemapper(mapping).remapJar(inputFile, remapTarget);
+                try (Writer writer = new FileWriter(mappingTarget)) {
+                    mapping.writeToJAM(writer);
+                }
 
-                mapping.writeToJAM(new FileWriter(mappingTarget));
+                break;
+            }
+
+            case "serve": {
+                int port = Integer.parseInt(options.getOrDefault("port", String.valueOf(RemapServer.DEFAULT_PORT)));
+                File snapshotDirectory = options.containsKey("snapshots") ? new File(options.get("snapshots")) : null;
+                try (RemapServer server = new RemapServer(port, threads, snapshotDirectory)) {
+                    System.out.println("Listening on port " + port);
+                    server.run();
+                }
+                break;
+            }
 
+            case "client": {
+                // The job's options are sent along with it, and parsed by the server
+                int port = Integer.parseInt(options.getOrDefault("port", String.valueOf(RemapServer.DEFAULT_PORT)));
+                List<String> jobArgs = new ArrayList<>(Arrays.asList(originalArgs));
+                jobArgs.remove(args[0]);
+                System.out.println(RemapServer.sendJob(port, jobArgs.toArray(new String[0])));
+                break;
+            }
+
+            case "snapshot": {
+                File snapshotDirectory = new File(args[1]);
+                File jdkSnapshotFile = InheritanceSnapshot.getJdkSnapshotFile(snapshotDirectory);
+                if (!jdkSnapshotFile.exists()) InheritanceSnapshot.writeJdkSnapshot(jdkSnapshotFile, threads);
+
+                for (int i = 2; i < args.length; i++) {
+                    JavaRemapper.makeInheritanceProvider(new File(args[i]), threads, null, snapshotDirectory);
+                }
+                break;
+            }
+
+            case "jam2bin": {
+                ReadableMapping mapping = readMapping(new File(args[1]));
+                try (OutputStream outputStream = new FileOutputStream(args[2])) {
+                    mapping.writeToBinary(outputStream);
+                }
+                break;
+            }
+
+            case "compose": {
+                ReadableMapping mapping = readMappings(Arrays.copyOfRange(args, 2, args.length));
+                try (Writer writer = new BufferedWriter(new FileWriter(args[1]))) {
+                    mapping.writeToJAM(writer);
+                }
+                break;
+            }
+
+            case "invert": {
+                Mapping mapping = readMapping(new File(args[1])).invert();
+                try (Writer writer = new BufferedWriter(new FileWriter(args[2]))) {
+                    mapping.writeToJAM(writer);
+                }
                 break;
             }
 
             case "srg2jam": {
-                Srg2Jam.convert(new File(args[1]));
+                File outputDir = new File(args.length > 2 ? args[2] : ".");
+                boolean binary = options.getOrDefault("format", "jam").equalsIgnoreCase("binary");
+                Srg2Jam.convert(new File(args[1]), outputDir, binary);
                 break;
             }
 
@@ -81,4 +191,121 @@ public final class CommandLine {
             }
         }
     }
+
+    /** Reads mapping files and composes them, so that they're applied in the order they're given in **/
+    static ReadableMapping readMappings(String[] mappingFiles) throws IOException {
+        ReadableMapping mapping = readMapping(new File(mappingFiles[0]));
+        for (int i = 1; i < mappingFiles.length; i++) {
+            mapping = mapping.compose(readMapping(new File(mappingFiles[i])));
+        }
+        return mapping;
+    }
+
+    /** Reads a JAM file, or memory-maps a binary mapping file **/
+    private static ReadableMapping readMapping(File mappingFile) throws IOException {
+        if (BinaryMapping.isBinaryMapping(mappingFile)) return new BinaryMapping(mappingFile);
+
+        Mapping mapping = new Mapping();
+        try (Reader reader = new BufferedReader(new FileReader(mappingFile))) {
+            mapping.readFromJAM(reader);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return mapping;
+    }
+
+    /** Applies the options every remap job takes: --cache, --cache-size, --skip-unmapped, --compression and --max-in-flight **/
+    static void configureRemapper(JavaRemapper remapper, Map<String, String> options) throws IOException {
+        configureRemapper(remapper, options, RemapCache::new);
+    }
+
+    /** Applies the options every remap job takes, getting the remap cache from the given opener **/
+    static void configureRemapper(JavaRemapper remapper, Map<String, String> options, CacheOpener cacheOpener) throws IOException {
+        if (options.containsKey("cache")) {
+            long cacheSize = Long.parseLong(options.getOrDefault("cache-size", "1024")) * 1024 * 1024;
+            remapper.cache = cacheOpener.open(new File(options.get("cache")), cacheSize);
+        }
+        remapper.skipUnmappedClasses = Boolean.parseBoolean(options.getOrDefault("skip-unmapped", "false"));
+        configureCompression(remapper, options);
+        remapper.maxBytesInFlight = Long.parseLong(options.getOrDefault("max-in-flight", "0")) * 1024 * 1024;
+    }
+
+    interface CacheOpener {
+        RemapCache open(File directory, long maxSize) throws IOException;
+    }
+
+    /** Sets the compression level given with --compression, storing unchanged entries uncompressed as well for "stored" **/
+    static void configureCompression(JavaRemapper remapper, Map<String, String> options) {
+        String compression = options.get("compression");
+        if (compression == null) return;
+
+        remapper.compressionLevel = compression.equalsIgnoreCase("stored") ? Deflater.NO_COMPRESSION : Integer.parseInt(compression);
+        if (remapper.compressionLevel < -1 || remapper.compressionLevel > 9) throw new IllegalArgumentException("Invalid compression level " + compression);
+        if (remapper.compressionLevel == Deflater.NO_COMPRESSION) remapper.copyUnchangedEntries = false;
+    }
+
+    /** Makes a remapper print entries and warnings if --verbose is set, it doesn't print anything otherwise **/
+    private static void configureOutput(JavaRemapper remapper, Map<String, String> options) {
+        if (!Boolean.parseBoolean(options.getOrDefault("verbose", "false"))) return;
+
+        remapper.listener = new RemapListener() {
+            @Override
+            public void entryWritten(String name, int written, int total) {
+                System.out.println(name);
+            }
+
+            @Override
+            public void warning(String message) {
+                System.err.println("WARNING: " + message);
+            }
+        };
+    }
+
+    /** Writes the stats of a remapper to the file given with --stats **/
+    private static void writeStats(JavaRemapper remapper, Map<String, String> options) throws IOException {
+        String statsFile = options.get("stats");
+        if (statsFile == null) return;
+
+        if (statsFile.equals("-")) {
+            System.out.print(remapper.stats.toJSON());
+        } else {
+            try (Writer writer = new FileWriter(statsFile)) {
+                writer.write(remapper.stats.toJSON());
+            }
+        }
+    }
+
+    /** Indexes the libraries given with --libraries, or returns null if there are none **/
+    private static ClasspathIndex readClasspath(Map<String, String> options, int threads) throws IOException {
+        if (!options.containsKey("libraries")) return null;
+
+        List<File> libraries = new ArrayList<>();
+        for (String path : options.get("libraries").split(File.pathSeparator)) {
+            if (!path.isEmpty()) libraries.add(new File(path));
+        }
+        return new ClasspathIndex(libraries, threads);
+    }
+
+    /**
+     * Removes "--name value" options from the arguments, returning the remaining positional arguments. Boolean
+     * options can be given without a value, which means true.
+     */
+    static String[] parseOptions(String[] args, Map<String, String> options) {
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                String name = args[i].substring(2);
+                if (BOOLEAN_OPTIONS.contains(name)) {
+                    boolean hasValue = i + 1 < args.length && (args[i + 1].equalsIgnoreCase("true") || args[i + 1].equalsIgnoreCase("false"));
+                    options.put(name, hasValue ? args[++i] : "true");
+                    continue;
+                }
+                if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for option " + args[i]);
+                options.put(name, args[++i]);
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        return positional.toArray(new String[0]);
+    }
 }
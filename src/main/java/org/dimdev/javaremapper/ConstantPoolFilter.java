@@ -0,0 +1,161 @@
+package org.dimdev.javaremapper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Finds classes that can't be changed by a mapping, by checking the strings in their constant pool
+ * against the names the mapping renames, without parsing the rest of the class. Every name a class
+ * refers to is a constant pool string, either on its own (class and member names) or inside a descriptor
+ * or signature, where class names are between an 'L' and a ';' or '<'.
+ *
+ * Strings are checked against a bloom filter of the names' hashes first, so that only possible matches
+ * are decoded. Can be used from several threads at once.
+ */
+public class ConstantPoolFilter {
+    private final Set<String> names = new HashSet<>();
+    private final long[] bloomFilter;
+    private final int bloomMask;
+
+    public ConstantPoolFilter(Set<String> mappedNames) {
+        for (String name : mappedNames) {
+            names.add(name);
+
+            // Inner classes of generic classes are referred to by their outer class in signatures
+            for (int i = name.indexOf('$'); i > 0; i = name.indexOf('$', i + 1)) names.add(name.substring(0, i));
+        }
+
+        int bits = Math.max(64, Integer.highestOneBit(Math.max(1, names.size()) * 16 - 1) << 1);
+        bloomFilter = new long[bits / 64];
+        bloomMask = bits - 1;
+        for (String name : names) {
+            int hash = name.hashCode();
+            setBit(hash);
+            setBit(mix(hash));
+        }
+    }
+
+    /** Creates a filter for a mapping, or returns null if any name may be renamed by it **/
+    public static ConstantPoolFilter create(ReadableMapping mapping) {
+        Set<String> mappedNames = mapping.getMappedNames();
+        return mappedNames == null ? null : new ConstantPoolFilter(mappedNames);
+    }
+
+    /** Returns whether a class may refer to a renamed name. Classes that can't be parsed may. **/
+    public boolean mayBeRemapped(byte[] data) {
+        if (data.length < 10) return true;
+
+        int constantCount = readUnsignedShort(data, 8);
+        int offset = 10;
+        for (int i = 1; i < constantCount; i++) {
+            if (offset >= data.length) return true;
+            switch (data[offset]) {
+                case 1: // Utf8
+                    if (offset + 3 > data.length) return true;
+                    int length = readUnsignedShort(data, offset + 1);
+                    if (offset + 3 + length > data.length || mayContainName(data, offset + 3, offset + 3 + length)) return true;
+                    offset += 3 + length;
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    offset += 3;
+                    break;
+                case 15: // MethodHandle
+                    offset += 4;
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    offset += 5;
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    offset += 9;
+                    i++; // Takes up two constant pool entries
+                    break;
+                default:
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean mayContainName(byte[] data, int start, int end) {
+        // Strings that aren't ASCII are rare, and are decoded before checking them
+        for (int i = start; i < end; i++) {
+            if (data[i] < 0) return mayContainName(decodeModifiedUtf8(data, start, end));
+        }
+
+        if (mayBeName(data, start, end)) return true;
+        for (int i = start; i < end; i++) {
+            if (data[i] != 'L') continue;
+            int nameEnd = i + 1;
+            while (nameEnd < end && data[nameEnd] != ';' && data[nameEnd] != '<') nameEnd++;
+            if (mayBeName(data, i + 1, nameEnd)) return true;
+        }
+        return false;
+    }
+
+    private boolean mayBeName(byte[] data, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) hash = 31 * hash + data[i];
+        if (!getBit(hash) || !getBit(mix(hash))) return false;
+        return names.contains(new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    private boolean mayContainName(String string) {
+        if (names.contains(string)) return true;
+        for (int i = string.indexOf('L'); i >= 0; i = string.indexOf('L', i + 1)) {
+            int nameEnd = i + 1;
+            while (nameEnd < string.length() && string.charAt(nameEnd) != ';' && string.charAt(nameEnd) != '<') nameEnd++;
+            if (names.contains(string.substring(i + 1, nameEnd))) return true;
+        }
+        return false;
+    }
+
+    private static String decodeModifiedUtf8(byte[] data, int start, int end) {
+        char[] chars = new char[end - start];
+        int length = 0;
+        for (int i = start; i < end; ) {
+            int b = data[i++] & 0xFF;
+            if (b < 0x80) {
+                chars[length++] = (char) b;
+            } else if (b < 0xE0) {
+                chars[length++] = (char) (((b & 0x1F) << 6) | (i < end ? data[i++] & 0x3F : 0));
+            } else {
+                int b2 = i < end ? data[i++] & 0x3F : 0;
+                int b3 = i < end ? data[i++] & 0x3F : 0;
+                chars[length++] = (char) (((b & 0x0F) << 12) | (b2 << 6) | b3);
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    private void setBit(int hash) {
+        int bit = hash & bloomMask;
+        bloomFilter[bit >>> 6] |= 1L << bit;
+    }
+
+    private boolean getBit(int hash) {
+        int bit = hash & bloomMask;
+        return (bloomFilter[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,28 @@
+package org.dimdev.javaremapper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public final class Futures {
+    private Futures() {}
+
+    /** Waits for a task, rethrowing what it failed with instead of an ExecutionException **/
+    public static <T> T waitFor(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            // Unwrap failures of tasks that were themselves waiting for other tasks
+            Throwable cause = e.getCause();
+            while (cause instanceof ExecutionException && cause.getCause() != null) cause = cause.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -1,75 +1,256 @@
 package org.dimdev.javaremapper;
 
-import java.util.Set;
+import org.objectweb.asm.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Generates unique names for the classes of a jar and the members they declare. All names are generated
+ * before remapping, numbered in the order of the original names, so the same jar always gets the same
+ * mapping and lookups can be done from any number of threads.
+ *
+ * Mappings created with a class filter generate names lazily instead, in the order they're looked up.
+ */
 public class GeneratingMapping extends Mapping {
-    private InheritanceProvider inheritanceProvider;
-    private Set<String> classFilter;
+    private static final int SCAN_FLAGS = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+
+    // Only set for lazily generated names
+    private final InheritanceProvider inheritanceProvider;
+    private final Set<String> classFilter;
     private int classIndex = 0;
     private int fieldIndex = 0;
     private int methodIndex = 0;
 
+    /**
+     * Creates a mapping that generates names for the classes in the filter while they're looked up.
+     * Lookups are serialized, and the names depend on the order of the lookups.
+     */
     public GeneratingMapping(InheritanceProvider inheritanceProvider, Set<String> classFilter) {
         this.inheritanceProvider = inheritanceProvider;
         this.classFilter = classFilter;
     }
 
+    /** Generates the names of a jar's classes, reading the jar to find their members **/
+    public GeneratingMapping(File jar, InheritanceProvider inheritanceProvider, int threads) throws IOException {
+        this(scan(jar, threads), inheritanceProvider, threads);
+    }
+
+    /** Generates the names of classes whose members were collected while the jar was scanned for its inheritance **/
+    public GeneratingMapping(DeclaredClasses declaredClasses, InheritanceProvider inheritanceProvider, int threads) throws IOException {
+        this.inheritanceProvider = null;
+        classFilter = null;
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            // Find the members that don't inherit their name from a superclass, in parallel
+            List<Future<DeclaredMembers>> filters = new ArrayList<>();
+            for (DeclaredMembers members : new TreeMap<>(declaredClasses.classes).values()) {
+                filters.add(workers.submit(() -> members.withoutInherited(inheritanceProvider)));
+            }
+
+            // Number the names in order
+            int classIndex = 0;
+            int fieldIndex = 0;
+            int methodIndex = 0;
+            for (Future<DeclaredMembers> filter : filters) {
+                DeclaredMembers members = Futures.waitFor(filter);
+                addClass(members.className, "Class" + classIndex++);
+                for (MemberRef field : members.fields) {
+                    addField(members.className, field.name, field.descriptor, "field" + fieldIndex++);
+                }
+                for (MemberRef method : members.methods) {
+                    addMethod(members.className, method.name, method.descriptor, "method" + methodIndex++);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static DeclaredClasses scan(File jar, int threads) throws IOException {
+        DeclaredClasses declaredClasses = new DeclaredClasses();
+        JavaRemapper.scanJar(jar, null, threads, false, declaredClasses);
+        return declaredClasses;
+    }
+
+    @Override
     public String getClass(String className) {
-        // Don't remap classes not in jar
-        if (!classFilter.contains(className)) return null;
+        if (classFilter == null) return super.getClass(className);
+        synchronized (this) {
+            // Don't remap classes not in jar
+            if (!classFilter.contains(className)) return null;
 
-        String result = super.getClass(className);
-        if (result == null) {
-            result = "Class" + classIndex++;
-            addClass(className, result);
+            String result = super.getClass(className);
+            if (result == null) {
+                result = "Class" + classIndex++;
+                addClass(className, result);
+            }
+            return result;
         }
-        return result;
     }
 
+    @Override
     public String getField(String className, String fieldName, String fieldDescriptor) {
-        // Don't remap classes not in jar
-        if (!classFilter.contains(className)) return null;
+        if (classFilter == null) return super.getField(className, fieldName, fieldDescriptor);
+        synchronized (this) {
+            // Don't remap classes not in jar
+            if (!classFilter.contains(className)) return null;
 
-        // Don't remap inherited fields, their name is inherited from the parent's mapping
-        for (String superclass : inheritanceProvider.getAllSuperclasses(className)) {
-            if (inheritanceProvider.getInheritableFields(superclass).contains(new MemberRef(fieldName, fieldDescriptor))) {
-                return null;
+            // Don't remap inherited fields, their name is inherited from the parent's mapping
+            for (String superclass : inheritanceProvider.getAllSuperclasses(className)) {
+                if (inheritanceProvider.getInheritableFields(superclass).contains(new MemberRef(fieldName, fieldDescriptor))) {
+                    return null;
+                }
             }
-        }
 
-        String result = super.getField(className, fieldName, fieldDescriptor);
-        if (result == null) {
-            result = "field" + fieldIndex++;
-            addField(className, fieldName, fieldDescriptor, result);
+            String result = super.getField(className, fieldName, fieldDescriptor);
+            if (result == null) {
+                result = "field" + fieldIndex++;
+                addField(className, fieldName, fieldDescriptor, result);
+            }
+            return result;
         }
-        return result;
     }
 
+    @Override
     public String getMethod(String className, String methodName, String methodDescriptor) {
-        // Don't remap classes not in jar
-        if (!classFilter.contains(className)) return null;
+        if (classFilter == null) return super.getMethod(className, methodName, methodDescriptor);
+        synchronized (this) {
+            // Don't remap classes not in jar
+            if (!classFilter.contains(className)) return null;
+            if (!DeclaredMembers.isRenamed(methodName)) return null;
 
-        // Don't remap <init>, <clinit>, values, valueOf, access$* TODO: don't remap any synthetic/bridge methods
-        if (methodName.equals("<init>") ||
-            methodName.equals("<clinit>") ||
-            methodName.equals("values") ||
-            methodName.equals("valueOf") ||
-            methodName.startsWith("access$")) return null;
-
-        // Don't remap inherited methods, their name is inherited from the parent's mapping
-        for (String superclass : inheritanceProvider.getAllSuperclasses(className)) {
-            for (MemberRef ref : inheritanceProvider.getInheritableMethods(superclass)) {
-                if (methodName.equals(ref.name) && TypeUtil.methodDescriptorOverrides(inheritanceProvider, methodDescriptor, ref.descriptor)) {
-                    return null;
+            // Don't remap inherited methods, their name is inherited from the parent's mapping
+            for (String superclass : inheritanceProvider.getAllSuperclasses(className)) {
+                for (MemberRef ref : inheritanceProvider.getInheritableMethods(superclass)) {
+                    if (methodName.equals(ref.name) && TypeUtil.methodDescriptorOverrides(inheritanceProvider, methodDescriptor, ref.descriptor)) {
+                        return null;
+                    }
                 }
             }
+
+            String result = super.getMethod(className, methodName, methodDescriptor);
+            if (result == null) {
+                result = "method" + methodIndex++;
+                addMethod(className, methodName, methodDescriptor, result);
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public Set<String> getMappedNames() {
+        return classFilter == null ? super.getMappedNames() : null; // Any name of the filtered classes may be renamed
+    }
+
+    @Override
+    public byte[] getFingerprint() {
+        return classFilter == null ? super.getFingerprint() : null; // Names depend on the order of lookups
+    }
+
+    /**
+     * The members declared by the classes of a jar, collected while it's scanned, from any number of threads.
+     * Members of classes that are in the jar more than once are merged.
+     */
+    public static class DeclaredClasses implements InheritanceSnapshot.ClassDataVisitor {
+        private final Map<String, DeclaredMembers> classes = new ConcurrentHashMap<>();
+
+        @Override
+        public void visit(byte[] data) {
+            DeclaredMembers members = new DeclaredMembers();
+            new ClassReader(data).accept(members, SCAN_FLAGS);
+            classes.merge(members.className, members, DeclaredMembers::merge);
+        }
+    }
+
+    private static class DeclaredMembers extends ClassVisitor {
+        // Sorted by name and descriptor
+        private static final Comparator<MemberRef> MEMBER_ORDER = Comparator.<MemberRef, String>comparing(member -> member.name).thenComparing(member -> member.descriptor);
+
+        public String className;
+        public Collection<MemberRef> fields = new LinkedHashSet<>();
+        public Collection<MemberRef> methods = new LinkedHashSet<>();
+
+        public DeclaredMembers() {
+            super(Opcodes.ASM6);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            className = name;
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            fields.add(new MemberRef(name, descriptor));
+            return null;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            methods.add(new MemberRef(name, descriptor));
+            return null;
+        }
+
+        private DeclaredMembers merge(DeclaredMembers other) {
+            DeclaredMembers result = new DeclaredMembers();
+            result.className = className;
+            result.fields.addAll(fields);
+            result.fields.addAll(other.fields);
+            result.methods.addAll(methods);
+            result.methods.addAll(other.methods);
+            return result;
         }
 
-        String result = super.getMethod(className, methodName, methodDescriptor);
-        if (result == null) {
-            result = "method" + methodIndex++;
-            addMethod(className, methodName, methodDescriptor, result);
+        // Don't remap <init>, <clinit>, values, valueOf, access$* TODO: don't remap any synthetic/bridge methods
+        private static boolean isRenamed(String methodName) {
+            return !methodName.equals("<init>") &&
+                   !methodName.equals("<clinit>") &&
+                   !methodName.equals("values") &&
+                   !methodName.equals("valueOf") &&
+                   !methodName.startsWith("access$");
+        }
+
+        /** Gets the members that should get a new name, in order **/
+        public DeclaredMembers withoutInherited(InheritanceProvider inheritanceProvider) {
+            List<MemberRef> resultFields = new ArrayList<>();
+            List<MemberRef> resultMethods = new ArrayList<>();
+            Set<String> superclasses = inheritanceProvider.getAllSuperclasses(className);
+
+            // Don't remap inherited fields, their name is inherited from the parent's mapping
+            fields:
+            for (MemberRef field : fields) {
+                for (String superclass : superclasses) {
+                    if (inheritanceProvider.getInheritableFields(superclass).contains(field)) continue fields;
+                }
+                resultFields.add(field);
+            }
+
+            methods:
+            for (MemberRef method : methods) {
+                if (!isRenamed(method.name)) continue;
+
+                // Don't remap inherited methods, their name is inherited from the parent's mapping
+                for (String superclass : superclasses) {
+                    for (MemberRef ref : inheritanceProvider.getInheritableMethods(superclass)) {
+                        if (method.name.equals(ref.name) && TypeUtil.methodDescriptorOverrides(inheritanceProvider, method.descriptor, ref.descriptor)) {
+                            continue methods;
+                        }
+                    }
+                }
+                resultMethods.add(method);
+            }
+
+            resultFields.sort(MEMBER_ORDER);
+            resultMethods.sort(MEMBER_ORDER);
+            DeclaredMembers result = new DeclaredMembers();
+            result.className = className;
+            result.fields = resultFields;
+            result.methods = resultMethods;
+            return result;
         }
-        return result;
     }
 }
@@ -4,111 +4,368 @@ import org.objectweb.asm.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class InheritanceMapper extends ClassVisitor implements InheritanceProvider {
-    private Map<String, Set<String>> inheritanceMap = new HashMap<>();
-    private Map<String, Set<String>> allSuperclassCache = new HashMap<>();
-    private Map<String, Set<MemberRef>> inheritableMethods = new HashMap<>();
-    private Map<String, Set<MemberRef>> inheritableFields = new HashMap<>();
-    private String className;
+/**
+ * Keeps the superclasses and inheritable members of classes, loading the classes that weren't visited
+ * when they're first needed. Names and descriptors are stored once in a string pool and referred to by
+ * id: superclasses as arrays of ids, and members as sorted arrays of name and descriptor id pairs packed
+ * into longs. The sets returned are read-only views of these arrays.
+ */
+public class InheritanceMapper implements InheritanceProvider {
+    private static final int SCAN_FLAGS = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+
+    // A class's arrays are complete when it's added, and are never modified afterwards, so they can be
+    // read from any thread
+    private final StringPool pool = new StringPool();
+    private final Map<String, ClassInfo> classes = new ConcurrentHashMap<>();
+    private final ClasspathIndex classpath; // Libraries searched before the tool's own classpath, or null
+    private final InheritanceProvider parent; // Provides the classes that weren't visited instead, or null
+    private final List<InheritanceSnapshot> snapshots = new ArrayList<>(); // Searched before the libraries
+    private final WeakReference<ClassLoader> loader; // Searched before the tool's own classpath, or null
 
     public InheritanceMapper() {
-        super(Opcodes.ASM6);
+        this((ClasspathIndex) null);
     }
 
-    @Override
-    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-        super.visit(version, access, name, signature, superName, interfaces);
+    public InheritanceMapper(ClasspathIndex classpath) {
+        this.classpath = classpath;
+        parent = null;
+        loader = null;
+    }
 
-        inheritanceMap.put(name, new HashSet<>());
-        inheritableFields.put(name, new HashSet<>());
-        inheritableMethods.put(name, new HashSet<>());
+    /** Creates an inheritance mapper that gets the classes that weren't visited from another provider, such as one shared by several jars **/
+    public InheritanceMapper(InheritanceProvider parent) {
+        classpath = null;
+        this.parent = parent;
+        loader = null;
+    }
 
-        Set<String> inheritanceSet = inheritanceMap.get(name);
-        if (superName != null) inheritanceSet.add(superName); // java/lang/Object has a null superclass
-        inheritanceSet.addAll(Arrays.asList(interfaces));
-        if ((access & Opcodes.ACC_ENUM) != 0) inheritanceSet.add("java/lang/Enum");
-        className = name;
+    /** Creates an inheritance mapper that reads the classes that weren't visited from a class loader, without keeping the loader from being collected **/
+    public InheritanceMapper(ClassLoader loader) {
+        classpath = null;
+        parent = null;
+        this.loader = new WeakReference<>(loader);
     }
 
-    @Override
-    public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
-        FieldVisitor fieldVisitor = super.visitField(access, name, descriptor, signature, value);
-        if ((access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) != 0) {
-            inheritableFields.computeIfAbsent(className, k -> new HashSet<>()).add(new MemberRef(name, descriptor));
-        }
-        return fieldVisitor;
+    /** Adds a class to the inheritance map, returning its name. Can be called from several threads at once. **/
+    public String visitClass(byte[] data) {
+        ClassScanner scanner = new ClassScanner(false);
+        new ClassReader(data).accept(scanner, SCAN_FLAGS);
+        return scanner.className;
     }
 
-    @Override
-    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
-        MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
-        if ((access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) != 0) {
-            inheritableMethods.computeIfAbsent(className, k -> new HashSet<>()).add(new MemberRef(name, descriptor));
-        }
-        return methodVisitor;
+    /** Adds a snapshot to load classes that weren't visited from. Must be called before the mapper is used. **/
+    public void addSnapshot(InheritanceSnapshot snapshot) {
+        snapshots.add(snapshot);
     }
 
     @Override
     public Set<String> getSuperclasses(String name) {
-        Set<String> result = inheritanceMap.get(name);
-        if (result == null) {
-            visitClasspathClass(name);
-            result = inheritanceMap.get(name);
-        }
-        return result;
+        return new ClassNameSet(getClassInfo(name).superclasses, null);
     }
 
     @Override
     public Set<String> getAllSuperclasses(String name) {
-        Set<String> cacheResult = allSuperclassCache.get(name);
+        ClassInfo info = getClassInfo(name);
+        Set<String> cacheResult = info.allSuperclasses;
         if (cacheResult != null) return cacheResult;
 
-        Set<String> superclasses = new HashSet<>();
+        Set<String> superclasses = new LinkedHashSet<>();
         Deque<String> stack = new ArrayDeque<>(getSuperclasses(name));
 
         while (!stack.isEmpty()) {
             String currentClass = stack.pop();
-            superclasses.add(currentClass);
-            stack.addAll(getSuperclasses(currentClass));
+            if (superclasses.add(currentClass)) stack.addAll(getSuperclasses(currentClass));
         }
 
-        allSuperclassCache.put(name, superclasses);
-        return superclasses;
+        // Another thread may have computed the same set in the meantime, either one can be used
+        int[] ids = toIds(superclasses);
+        int[] sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        ClassNameSet result = new ClassNameSet(ids, sortedIds);
+        info.allSuperclasses = result;
+        return result;
     }
 
     @Override
     public Set<MemberRef> getInheritableFields(String name) {
-        Set<MemberRef> result = inheritableFields.get(name);
-        if (result == null) {
-            visitClasspathClass(name);
-            result = inheritableFields.get(name);
-        }
-        return result;
+        return new MemberSet(getClassInfo(name).fields);
     }
 
     @Override
     public Set<MemberRef> getInheritableMethods(String name) {
-        Set<MemberRef> result = inheritableMethods.get(name);
-        if (result == null) {
+        return new MemberSet(getClassInfo(name).methods);
+    }
+
+    private ClassInfo getClassInfo(String name) {
+        ClassInfo info = classes.get(name);
+        if (info == null) {
             visitClasspathClass(name);
-            result = inheritableMethods.get(name);
+            info = classes.get(name);
         }
-        return result;
+        return info;
     }
 
     private void visitClasspathClass(String name) {
-        inheritanceMap.put(name, new HashSet<>());
-        inheritableFields.put(name, new HashSet<>());
-        inheritableMethods.put(name, new HashSet<>());
+        // Several threads may load the same class at once, the first one to finish is kept
+        for (InheritanceSnapshot snapshot : snapshots) {
+            if (snapshot.load(name, this)) return;
+        }
+
+        if (parent != null) {
+            addClass(name, parent.getSuperclasses(name), parent.getInheritableFields(name), parent.getInheritableMethods(name), true);
+            return;
+        }
+
+        try {
+            byte[] data = classpath == null ? null : classpath.getClassData(name);
+            if (data != null) {
+                new ClassReader(data).accept(new ClassScanner(true), SCAN_FLAGS);
+                return;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
 
-        try (InputStream inputStream = InheritanceMapper.class.getClassLoader().getResourceAsStream(name + ".class")) {
-            if (inputStream == null) return;
+        try (InputStream inputStream = getClassStream(name)) {
+            if (inputStream == null) {
+                addClass(name, new int[0], new long[0], new long[0], true);
+                return;
+            }
             ClassReader reader = new ClassReader(inputStream);
-            reader.accept(this, 0);
+            reader.accept(new ClassScanner(true), SCAN_FLAGS);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    private InputStream getClassStream(String name) {
+        ClassLoader classLoader = loader == null ? null : loader.get();
+        InputStream inputStream = classLoader == null ? null : classLoader.getResourceAsStream(name + ".class");
+        return inputStream != null ? inputStream : InheritanceMapper.class.getClassLoader().getResourceAsStream(name + ".class");
+    }
+
+    void addClass(String name, Set<String> superclasses, Set<MemberRef> fields, Set<MemberRef> methods, boolean keepExisting) {
+        addClass(name, toIds(superclasses), toMembers(fields), toMembers(methods), keepExisting);
+    }
+
+    private void addClass(String name, int[] superclasses, long[] fields, long[] methods, boolean keepExisting) {
+        String pooledName = pool.get(pool.intern(name));
+        ClassInfo info = new ClassInfo(superclasses, fields, methods);
+        if (keepExisting) {
+            classes.putIfAbsent(pooledName, info);
+        } else {
+            classes.put(pooledName, info);
+        }
+    }
+
+    private int[] toIds(Collection<String> names) {
+        int[] ids = new int[names.size()];
+        int i = 0;
+        for (String name : names) ids[i++] = pool.intern(name);
+        return ids;
+    }
+
+    private long[] toMembers(Collection<MemberRef> members) {
+        long[] result = new long[members.size()];
+        int i = 0;
+        for (MemberRef member : members) result[i++] = pack(pool.intern(member.name), pool.intern(member.descriptor));
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static long pack(int nameId, int descriptorId) {
+        return (long) nameId << 32 | descriptorId;
+    }
+
+    private class ClassScanner extends ClassVisitor {
+        private final boolean keepExisting;
+        private String className;
+        private Set<String> superclasses = new LinkedHashSet<>();
+        private long[] fields = new long[8];
+        private int fieldCount = 0;
+        private long[] methods = new long[8];
+        private int methodCount = 0;
+
+        public ClassScanner(boolean keepExisting) {
+            super(Opcodes.ASM6);
+            this.keepExisting = keepExisting;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            super.visit(version, access, name, signature, superName, interfaces);
+
+            if (superName != null) superclasses.add(superName); // java/lang/Object has a null superclass
+            superclasses.addAll(Arrays.asList(interfaces));
+            if ((access & Opcodes.ACC_ENUM) != 0) superclasses.add("java/lang/Enum");
+            className = name;
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            if ((access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) != 0) {
+                if (fieldCount == fields.length) fields = Arrays.copyOf(fields, fieldCount * 2);
+                fields[fieldCount++] = pack(pool.intern(name), pool.intern(descriptor));
+            }
+            return null;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            if ((access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) != 0) {
+                if (methodCount == methods.length) methods = Arrays.copyOf(methods, methodCount * 2);
+                methods[methodCount++] = pack(pool.intern(name), pool.intern(descriptor));
+            }
+            return null;
+        }
+
+        @Override
+        public void visitEnd() {
+            long[] sortedFields = Arrays.copyOf(fields, fieldCount);
+            long[] sortedMethods = Arrays.copyOf(methods, methodCount);
+            Arrays.sort(sortedFields);
+            Arrays.sort(sortedMethods);
+            addClass(className, toIds(superclasses), sortedFields, sortedMethods, keepExisting);
+        }
+    }
+
+    private static class ClassInfo {
+        public final int[] superclasses; // In the order they're declared in
+        public final long[] fields; // Sorted
+        public final long[] methods; // Sorted
+        public volatile Set<String> allSuperclasses; // Computed when first needed
+
+        public ClassInfo(int[] superclasses, long[] fields, long[] methods) {
+            this.superclasses = superclasses;
+            this.fields = fields;
+            this.methods = methods;
+        }
+    }
+
+    /** Gives strings ids in the order they're added. Can be used from several threads at once. **/
+    private static class StringPool {
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile String[] strings = new String[1024]; // Replaced when full, entries are written before their id is published
+        private int size = 0; // Guarded by this
+
+        public int intern(String string) {
+            Integer id = ids.get(string);
+            if (id != null) return id;
+
+            synchronized (this) {
+                id = ids.get(string);
+                if (id != null) return id;
+
+                if (size == strings.length) strings = Arrays.copyOf(strings, size * 2);
+                strings[size] = string;
+                ids.put(string, size);
+                return size++;
+            }
+        }
+
+        /** Gets the id of a string, or -1 if it was never added **/
+        public int getId(String string) {
+            Integer id = ids.get(string);
+            return id == null ? -1 : id;
+        }
+
+        public String get(int id) {
+            return strings[id];
+        }
+    }
+
+    /** A read-only view of class names stored as ids, which are looked up in sortedIds if they're given **/
+    private class ClassNameSet extends AbstractSet<String> {
+        private final int[] ids;
+        private final int[] sortedIds;
+
+        public ClassNameSet(int[] ids, int[] sortedIds) {
+            this.ids = ids;
+            this.sortedIds = sortedIds;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < ids.length;
+                }
+
+                @Override
+                public String next() {
+                    if (index == ids.length) throw new NoSuchElementException();
+                    return pool.get(ids[index++]);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof String)) return false;
+            int id = pool.getId((String) o);
+            if (id < 0) return false;
+            if (sortedIds != null) return Arrays.binarySearch(sortedIds, id) >= 0;
+
+            // Classes have few direct superclasses, so they're searched in order
+            for (int superclass : ids) {
+                if (superclass == id) return true;
+            }
+            return false;
+        }
+    }
+
+    /** A read-only view of members stored as sorted name and descriptor id pairs **/
+    private class MemberSet extends AbstractSet<MemberRef> {
+        private final long[] members;
+
+        public MemberSet(long[] members) {
+            this.members = members;
+        }
+
+        @Override
+        public Iterator<MemberRef> iterator() {
+            return new Iterator<MemberRef>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < members.length;
+                }
+
+                @Override
+                public MemberRef next() {
+                    if (index == members.length) throw new NoSuchElementException();
+                    long member = members[index++];
+                    return new MemberRef(pool.get((int) (member >>> 32)), pool.get((int) member));
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return members.length;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof MemberRef)) return false;
+            MemberRef member = (MemberRef) o;
+            int nameId = pool.getId(member.name);
+            int descriptorId = pool.getId(member.descriptor);
+            if (nameId < 0 || descriptorId < 0) return false;
+            return Arrays.binarySearch(members, pack(nameId, descriptorId)) >= 0;
+        }
+    }
 }
@@ -0,0 +1,226 @@
+package org.dimdev.javaremapper;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * The superclasses and inheritable members of a jar's classes, saved to a file so that later runs don't
+ * need to scan the jar again. Snapshot files are memory-mapped, and classes are only decoded when
+ * they're looked up.
+ *
+ * The file starts with a header (magic, version, offset and slot count of the class table), followed by
+ * a string pool (see StringPool), the class records and the class table. Class records are the superclass
+ * count and superclass string offsets, then the field and method counts each followed by name and descriptor
+ * string offsets. The class table is an open-addressing hash table with slots of three ints: the class name's
+ * hash, the class name's string offset, and the record's offset (0 for empty slots).
+ */
+public class InheritanceSnapshot {
+    public static final int MAGIC = 0x4A524953; // "JRIS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 3 * 4;
+
+    private final ByteBuffer buffer;
+    private final int tableOffset;
+    private final int tableSlots;
+
+    public InheritanceSnapshot(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Inheritance snapshot is too large");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) throw new IOException("Not an inheritance snapshot");
+        if (buffer.getInt(4) != VERSION) throw new IOException("Unsupported inheritance snapshot version " + buffer.getInt(4));
+        tableOffset = buffer.getInt(8);
+        tableSlots = buffer.getInt(12);
+    }
+
+    /** Gets the file a jar's snapshot is stored in, which is named after the hash of the jar **/
+    public static File getSnapshotFile(File directory, File jar) throws IOException {
+        MessageDigest digest = RemapCache.newDigest();
+        try (InputStream inputStream = new DigestInputStream(new FileInputStream(jar), digest)) {
+            byte[] buffer = new byte[64 * 1024];
+            while (inputStream.read(buffer) != -1) ;
+        }
+        return new File(directory, RemapCache.toHex(digest.digest()) + ".inheritance");
+    }
+
+    /** Gets the file the snapshot of the running JDK's classes is stored in **/
+    public static File getJdkSnapshotFile(File directory) {
+        String jdk = System.getProperty("java.home") + " " + System.getProperty("java.runtime.version");
+        byte[] hash = RemapCache.newDigest().digest(jdk.getBytes(StandardCharsets.UTF_8));
+        return new File(directory, "jdk-" + RemapCache.toHex(hash).substring(0, 16) + ".inheritance");
+    }
+
+    /**
+     * Calls the visitor with the bytes of every class of the running JDK, from rt.jar on Java 8, or from
+     * the jrt filesystem on later versions
+     */
+    public static void visitJdkClasses(ClassDataVisitor visitor) throws IOException {
+        File rtJar = new File(System.getProperty("java.home"), "lib/rt.jar");
+        if (rtJar.isFile()) {
+            try (MappedJar jar = new MappedJar(rtJar)) {
+                for (MappedJar.Entry entry : jar.getEntries()) {
+                    if (entry.name.endsWith(".class")) visitor.visit(jar.getData(entry));
+                }
+            }
+            return;
+        }
+
+        Path modules = FileSystems.getFileSystem(URI.create("jrt:/")).getPath("/modules");
+        try (Stream<Path> files = Files.walk(modules)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName() == null ? "" : file.getFileName().toString();
+                if (name.endsWith(".class") && !name.equals("module-info.class")) visitor.visit(Files.readAllBytes(file));
+            }
+        }
+    }
+
+    /** Scans the classes of the running JDK in parallel, and saves them to a snapshot **/
+    public static void writeJdkSnapshot(File file, int threads) throws IOException {
+        InheritanceMapper inheritanceMapper = new InheritanceMapper();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> scans = new ArrayList<>();
+            visitJdkClasses(data -> scans.add(workers.submit(() -> inheritanceMapper.visitClass(data))));
+
+            List<String> classNames = new ArrayList<>();
+            for (Future<String> scan : scans) {
+                classNames.add(Futures.waitFor(scan));
+            }
+            write(inheritanceMapper, classNames, file);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /** Returns whether the snapshot contains a class **/
+    public boolean contains(String name) {
+        return findRecord(name) != 0;
+    }
+
+    /** Adds a class from the snapshot to an inheritance mapper, returning false if the snapshot doesn't contain it **/
+    public boolean load(String name, InheritanceMapper inheritanceMapper) {
+        int position = findRecord(name);
+        if (position == 0) return false;
+
+        Set<String> superclasses = new LinkedHashSet<>(); // In the order they were written, superclass first
+        int superclassCount = buffer.getInt(position);
+        position += 4;
+        for (int i = 0; i < superclassCount; i++, position += 4) superclasses.add(readString(buffer.getInt(position)));
+
+        List<Set<MemberRef>> memberSets = new ArrayList<>();
+        for (int set = 0; set < 2; set++) {
+            Set<MemberRef> members = new HashSet<>();
+            int memberCount = buffer.getInt(position);
+            position += 4;
+            for (int i = 0; i < memberCount; i++, position += 8) {
+                members.add(new MemberRef(readString(buffer.getInt(position)), readString(buffer.getInt(position + 4))));
+            }
+            memberSets.add(members);
+        }
+
+        inheritanceMapper.addClass(name, superclasses, memberSets.get(0), memberSets.get(1), true);
+        return true;
+    }
+
+    private int findRecord(String name) {
+        if (tableSlots == 0) return 0;
+
+        int hash = name.hashCode();
+        int mask = tableSlots - 1;
+        for (int slot = StringPool.mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int position = tableOffset + slot * SLOT_SIZE;
+            int record = buffer.getInt(position + 8);
+            if (record == 0) return 0;
+            if (buffer.getInt(position) == hash && stringEquals(buffer.getInt(position + 4), name)) return record;
+        }
+    }
+
+    private boolean stringEquals(int offset, String value) {
+        return StringPool.equals(buffer, offset, value);
+    }
+
+    private String readString(int offset) {
+        return StringPool.read(buffer, offset);
+    }
+
+    /** Saves the given classes of an inheritance provider to a snapshot file **/
+    public static void write(InheritanceProvider inheritanceProvider, Collection<String> classNames, File file) throws IOException {
+        // The string pool starts right after the header, so that no string has offset 0
+        StringPool pool = new StringPool(HEADER_SIZE);
+
+        // Build the class records, with string offsets
+        List<String> names = new ArrayList<>(new TreeSet<>(classNames));
+        List<int[]> records = new ArrayList<>();
+        for (String name : names) {
+            Set<String> superclasses = inheritanceProvider.getSuperclasses(name);
+            Set<MemberRef> fields = inheritanceProvider.getInheritableFields(name);
+            Set<MemberRef> methods = inheritanceProvider.getInheritableMethods(name);
+
+            int[] record = new int[3 + superclasses.size() + 2 * fields.size() + 2 * methods.size()];
+            int i = 0;
+            pool.add(name);
+            record[i++] = superclasses.size();
+            for (String superclass : superclasses) record[i++] = pool.add(superclass);
+            for (Set<MemberRef> members : Arrays.asList(fields, methods)) {
+                record[i++] = members.size();
+                for (MemberRef member : members) {
+                    record[i++] = pool.add(member.name);
+                    record[i++] = pool.add(member.descriptor);
+                }
+            }
+            records.add(record);
+        }
+
+        // Build the class table, with at most half of the slots used
+        int slots = names.isEmpty() ? 0 : Integer.highestOneBit(names.size() * 2 - 1) << 1;
+        int[] table = new int[slots * 3];
+        int recordOffset = HEADER_SIZE + pool.size();
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            int hash = name.hashCode();
+            int slot = StringPool.mix(hash) & (slots - 1);
+            while (table[slot * 3 + 2] != 0) slot = (slot + 1) & (slots - 1);
+            table[slot * 3] = hash;
+            table[slot * 3 + 1] = pool.add(name);
+            table[slot * 3 + 2] = recordOffset;
+            recordOffset += records.get(i).length * 4;
+        }
+
+        // Write to a temporary file first, so that other runs never see a partially written snapshot
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        Path temporaryFile = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(recordOffset);
+                out.writeInt(slots);
+                pool.writeTo(out);
+                for (int[] record : records) {
+                    for (int value : record) out.writeInt(value);
+                }
+                for (int value : table) out.writeInt(value);
+            }
+            Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    public interface ClassDataVisitor {
+        void visit(byte[] data) throws IOException;
+    }
+}
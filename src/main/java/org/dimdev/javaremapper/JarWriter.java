@@ -0,0 +1,255 @@
+package org.dimdev.javaremapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a jar file entry by entry. Unlike JarOutputStream, entries that are already compressed
+ * can be copied in without inflating and deflating them again, and entries can be compressed on
+ * other threads with compress before they're written in order. Entries are written with sizes before
+ * their data and UTF-8 names, whatever flags the jar they were copied from used.
+ */
+public class JarWriter implements Closeable {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int UTF8_FLAG = 0x0800;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private final List<CentralEntry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>(); // Reused by compress, ended when the writer is closed
+    private volatile boolean closed = false;
+    private final int compressionLevel;
+    private final int dosTime = toDosTime(System.currentTimeMillis());
+    private long position = 0;
+
+    public JarWriter(WritableByteChannel channel) {
+        this(channel, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /** Creates a writer compressing entries with a Deflater level, entries are stored uncompressed if it's 0 **/
+    public JarWriter(WritableByteChannel channel, int compressionLevel) {
+        this.channel = channel;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /** Writes an entry, compressing it **/
+    public void write(String name, byte[] data) throws IOException {
+        write(name, compress(data));
+    }
+
+    /** Writes an entry compressed by compress **/
+    public void write(String name, CompressedData data) throws IOException {
+        writeRaw(name, data.method, dosTime, data.crc, data.size, ByteBuffer.wrap(data.rawData, 0, data.rawSize));
+    }
+
+    /**
+     * Compresses an entry with the writer's compression level, or stores it uncompressed if the level is 0.
+     * Each deflate stream is independent, so entries can be compressed on any thread and written in any order.
+     */
+    public CompressedData compress(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if (compressionLevel == Deflater.NO_COMPRESSION) {
+            return new CompressedData(MappedJar.Entry.STORED, crc.getValue(), data.length, data, data.length);
+        }
+
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(compressionLevel, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] compressed = new byte[Math.max(64, data.length + data.length / 8 + 64)];
+            int compressedSize = 0;
+            while (!deflater.finished()) {
+                if (compressedSize == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                compressedSize += deflater.deflate(compressed, compressedSize, compressed.length - compressedSize);
+            }
+            return new CompressedData(MappedJar.Entry.DEFLATED, crc.getValue(), data.length, compressed, compressedSize);
+        } finally {
+            deflater.reset();
+            release(deflater);
+        }
+    }
+
+    private void release(Deflater deflater) {
+        // Deflaters released after the writer is closed are ended here instead of by close
+        if (closed) {
+            deflater.end();
+            return;
+        }
+        deflaters.add(deflater);
+        if (closed && deflaters.remove(deflater)) deflater.end();
+    }
+
+    /** Writes an entry whose data is already compressed using the given method **/
+    public void writeRaw(String name, int method, int dosTime, long crc, long size, ByteBuffer rawData) throws IOException {
+        if (!names.add(name)) throw new ZipException("duplicate entry: " + name);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int compressedSize = rawData.remaining();
+        entries.add(new CentralEntry(nameBytes, method, dosTime, crc, compressedSize, size, position));
+
+        // Sizes are known up front, so no data descriptor is needed
+        ensureSpace(30 + nameBytes.length);
+        buffer.putInt(LOCAL_HEADER_SIGNATURE);
+        buffer.putShort((short) 20); // Version needed to extract
+        buffer.putShort((short) UTF8_FLAG);
+        buffer.putShort((short) method);
+        buffer.putInt(dosTime);
+        buffer.putInt((int) crc);
+        buffer.putInt(compressedSize);
+        buffer.putInt((int) size);
+        buffer.putShort((short) nameBytes.length);
+        buffer.putShort((short) 0); // Extra field length
+        buffer.put(nameBytes);
+        position += 30 + nameBytes.length;
+
+        if (rawData.remaining() <= buffer.remaining()) {
+            buffer.put(rawData);
+        } else {
+            flush();
+            while (rawData.hasRemaining()) channel.write(rawData);
+        }
+        position += compressedSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) deflater.end();
+
+        // Write the central directory, using zip64 extra fields for offsets that don't fit in 32 bits
+        long directoryOffset = position;
+        for (CentralEntry entry : entries) {
+            boolean zip64Offset = entry.localHeaderOffset >= 0xFFFFFFFFL;
+            ensureSpace(46 + entry.name.length + 12);
+            buffer.putInt(CENTRAL_HEADER_SIGNATURE);
+            buffer.putShort((short) (zip64Offset ? 45 : 20)); // Version made by
+            buffer.putShort((short) (zip64Offset ? 45 : 20)); // Version needed to extract
+            buffer.putShort((short) UTF8_FLAG);
+            buffer.putShort((short) entry.method);
+            buffer.putInt(entry.dosTime);
+            buffer.putInt((int) entry.crc);
+            buffer.putInt((int) entry.compressedSize);
+            buffer.putInt((int) entry.size);
+            buffer.putShort((short) entry.name.length);
+            buffer.putShort((short) (zip64Offset ? 12 : 0));
+            buffer.putShort((short) 0); // Comment length
+            buffer.putShort((short) 0); // Disk number
+            buffer.putShort((short) 0); // Internal attributes
+            buffer.putInt(0); // External attributes
+            buffer.putInt(zip64Offset ? 0xFFFFFFFF : (int) entry.localHeaderOffset);
+            buffer.put(entry.name);
+            if (zip64Offset) {
+                buffer.putShort((short) 0x0001);
+                buffer.putShort((short) 8);
+                buffer.putLong(entry.localHeaderOffset);
+            }
+            position += 46 + entry.name.length + (zip64Offset ? 12 : 0);
+        }
+        long directorySize = position - directoryOffset;
+
+        boolean zip64 = entries.size() >= 0xFFFF || directoryOffset >= 0xFFFFFFFFL || directorySize >= 0xFFFFFFFFL;
+        ensureSpace(56 + 20 + 22);
+        if (zip64) {
+            long zip64EndOffset = position;
+            buffer.putInt(ZIP64_END_SIGNATURE);
+            buffer.putLong(44); // Size of the remaining record
+            buffer.putShort((short) 45);
+            buffer.putShort((short) 45);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putLong(entries.size());
+            buffer.putLong(entries.size());
+            buffer.putLong(directorySize);
+            buffer.putLong(directoryOffset);
+
+            buffer.putInt(ZIP64_LOCATOR_SIGNATURE);
+            buffer.putInt(0);
+            buffer.putLong(zip64EndOffset);
+            buffer.putInt(1);
+        }
+
+        buffer.putInt(END_SIGNATURE);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) Math.min(entries.size(), 0xFFFF));
+        buffer.putShort((short) Math.min(entries.size(), 0xFFFF));
+        buffer.putInt((int) Math.min(directorySize, 0xFFFFFFFFL));
+        buffer.putInt((int) Math.min(directoryOffset, 0xFFFFFFFFL));
+        buffer.putShort((short) 0); // Comment length
+        flush();
+        channel.close();
+    }
+
+    private void ensureSpace(int size) throws IOException {
+        if (buffer.remaining() < size) flush();
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        return (calendar.get(Calendar.YEAR) - 1980) << 25 |
+               (calendar.get(Calendar.MONTH) + 1) << 21 |
+               calendar.get(Calendar.DAY_OF_MONTH) << 16 |
+               calendar.get(Calendar.HOUR_OF_DAY) << 11 |
+               calendar.get(Calendar.MINUTE) << 5 |
+               calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    public static class CompressedData {
+        public final int method;
+        public final long crc;
+        public final long size;
+        public final byte[] rawData;
+        public final int rawSize;
+
+        public CompressedData(int method, long crc, long size, byte[] rawData, int rawSize) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.rawData = rawData;
+            this.rawSize = rawSize;
+        }
+    }
+
+    private static class CentralEntry {
+        public final byte[] name;
+        public final int method;
+        public final int dosTime;
+        public final long crc;
+        public final long compressedSize;
+        public final long size;
+        public final long localHeaderOffset;
+
+        public CentralEntry(byte[] name, int method, int dosTime, long crc, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+}
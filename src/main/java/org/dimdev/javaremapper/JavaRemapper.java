@@ -2,217 +2,793 @@ package org.dimdev.javaremapper;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
-import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.commons.Remapper;
-import org.objectweb.asm.tree.*;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Objects;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
 
 public class JavaRemapper {
-    public Mapping mapping;
+    public ReadableMapping mapping;
+    public int threads;
+    public boolean copyUnchangedEntries = true; // Copy compressed data of unchanged entries without recompressing it
+    public RemapCache cache; // Remapped classes from previous runs, or null to always remap classes
+    public ClasspathIndex classpath; // Libraries the jar depends on, or null to only use the tool's own classpath
+    public File snapshotDirectory; // Inheritance snapshots of jars and the JDK, or null to always scan the jar
+    public boolean skipUnmappedClasses = false; // Copy classes that refer to no mapped names without adding parameter and local names
+    public int compressionLevel = Deflater.DEFAULT_COMPRESSION; // Deflater level of written entries, 0 stores them uncompressed
+    public long maxBytesInFlight = 0; // Bytes of entries read but not written yet that are kept in memory at once, 0 for no limit
+    public RemapStats stats = new RemapStats(); // Totals of all jars remapped by this remapper
+    public RemapListener listener = RemapListener.NONE;
+    public SimpleRemapper sharedRemapper; // Remapper of the mapping and the jar's inheritance to reuse resolved member names of, or null
+
+    public JavaRemapper(ReadableMapping mapping) {
+        this(mapping, 1);
+    }
 
-    public JavaRemapper(Mapping mapping) {
+    public JavaRemapper(ReadableMapping mapping, int threads) {
         this.mapping = mapping;
+        this.threads = threads;
     }
 
     public void remapJar(File inputFile, File remapTarget) throws IOException {
-        remapJar(inputFile, remapTarget, makeInheritanceProvider(inputFile));
+        long start = System.nanoTime();
+        InheritanceProvider inheritanceProvider = makeInheritanceProvider(inputFile, threads, classpath, snapshotDirectory);
+        long time = System.nanoTime() - start;
+        stats.addTime(RemapStats.Phase.INDEX, time);
+        stats.wallTime.add(time);
+
+        remapJar(inputFile, remapTarget, inheritanceProvider);
     }
 
     public static InheritanceProvider makeInheritanceProvider(File inputFile) throws IOException {
-        // Make the inheritance map
-        InheritanceMapper inheritanceMapper = new InheritanceMapper();
-        try (JarFile jar = new JarFile(inputFile)) {
-            Enumeration<JarEntry> entries = jar.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry entry = entries.nextElement();
-                InputStream in = jar.getInputStream(entry);
+        return makeInheritanceProvider(inputFile, 1);
+    }
 
+    public static InheritanceProvider makeInheritanceProvider(File inputFile, int threads) throws IOException {
+        return makeInheritanceProvider(inputFile, threads, null);
+    }
+
+    public static InheritanceProvider makeInheritanceProvider(File inputFile, int threads, ClasspathIndex classpath) throws IOException {
+        return makeInheritanceProvider(inputFile, threads, classpath, null);
+    }
+
+    /**
+     * Makes the inheritance map of a jar. If a snapshot directory is given, the jar's snapshot is used
+     * instead of scanning the jar if there is one, or saved after scanning it otherwise. Snapshots of the
+     * libraries and of the JDK are used too if they exist.
+     */
+    public static InheritanceProvider makeInheritanceProvider(File inputFile, int threads, ClasspathIndex classpath, File snapshotDirectory) throws IOException {
+        return makeInheritanceProvider(inputFile, threads, classpath, snapshotDirectory, null);
+    }
+
+    /**
+     * Makes the inheritance map of a jar, giving the data of each of its classes to a visitor as well, from
+     * the scanning threads. The jar is still read for the visitor if its snapshot is used.
+     */
+    public static InheritanceProvider makeInheritanceProvider(File inputFile, int threads, ClasspathIndex classpath, File snapshotDirectory, InheritanceSnapshot.ClassDataVisitor visitor) throws IOException {
+        InheritanceMapper inheritanceMapper = new InheritanceMapper(classpath);
+        File snapshotFile = null;
+        if (snapshotDirectory != null) {
+            // The jar's classes take precedence over the libraries', which take precedence over the JDK's
+            snapshotFile = InheritanceSnapshot.getSnapshotFile(snapshotDirectory, inputFile);
+            if (snapshotFile.exists()) inheritanceMapper.addSnapshot(new InheritanceSnapshot(snapshotFile));
+            if (classpath != null) {
+                for (File library : classpath.getLibraries()) {
+                    if (!library.isFile()) continue;
+                    File librarySnapshotFile = InheritanceSnapshot.getSnapshotFile(snapshotDirectory, library);
+                    if (librarySnapshotFile.exists()) inheritanceMapper.addSnapshot(new InheritanceSnapshot(librarySnapshotFile));
+                }
+            }
+            File jdkSnapshotFile = InheritanceSnapshot.getJdkSnapshotFile(snapshotDirectory);
+            if (jdkSnapshotFile.exists()) inheritanceMapper.addSnapshot(new InheritanceSnapshot(jdkSnapshotFile));
+
+            if (snapshotFile.exists()) {
+                if (visitor != null) scanJar(inputFile, null, threads, false, visitor);
+                return inheritanceMapper;
+            }
+        }
+
+        List<String> classNames = scanJar(inputFile, inheritanceMapper, threads, classpath != null, visitor);
+        if (snapshotFile != null) InheritanceSnapshot.write(inheritanceMapper, classNames, snapshotFile);
+        return inheritanceMapper;
+    }
+
+    /**
+     * Adds the classes of a jar to an inheritance mapper, scanning them in parallel, and returns their names.
+     * If loadSupertypes is true, the classes they extend are loaded in parallel too, rather than one at a time
+     * while remapping.
+     */
+    public static List<String> scanJar(File inputFile, InheritanceMapper inheritanceMapper, int threads, boolean loadSupertypes) throws IOException {
+        return scanJar(inputFile, inheritanceMapper, threads, loadSupertypes, null);
+    }
+
+    /**
+     * Scans the classes of a jar like scanJar(File, InheritanceMapper, int, boolean), giving their data to a
+     * visitor as well, from the scanning threads. The inheritance mapper may be null to only visit them.
+     */
+    public static List<String> scanJar(File inputFile, InheritanceMapper inheritanceMapper, int threads, boolean loadSupertypes, InheritanceSnapshot.ClassDataVisitor visitor) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try (MappedJar jar = new MappedJar(inputFile)) {
+            List<Future<String>> scans = new ArrayList<>();
+            for (MappedJar.Entry entry : jar.getEntries()) {
                 // Visit the class and determine dependencies
-                if (entry.getName().endsWith(".class")) {
-                    ClassReader reader = new ClassReader(in);
-                    reader.accept(inheritanceMapper, 0);
+                if (entry.name.endsWith(".class")) {
+                    scans.add(workers.submit(() -> {
+                        byte[] data = jar.getData(entry);
+                        if (visitor != null) visitor.visit(data);
+                        return inheritanceMapper == null ? null : inheritanceMapper.visitClass(data);
+                    }));
                 }
             }
+
+            List<String> classNames = new ArrayList<>();
+            for (Future<String> scan : scans) {
+                classNames.add(Futures.waitFor(scan));
+            }
+            if (inheritanceMapper == null) return Collections.emptyList();
+
+            if (loadSupertypes) loadSupertypes(inheritanceMapper, classNames, workers);
+            return classNames;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /** Makes the inheritance map of entries read one at a time, such as the entries of a jar in memory **/
+    public static InheritanceProvider makeInheritanceProvider(Iterator<Map.Entry<String, byte[]>> entries, int threads, ClasspathIndex classpath) throws IOException {
+        return makeInheritanceProvider(entries, threads, classpath, 0);
+    }
+
+    /** Makes the inheritance map of entries read one at a time, reading no further while too many bytes wait to be scanned **/
+    public static InheritanceProvider makeInheritanceProvider(Iterator<Map.Entry<String, byte[]>> entries, int threads, ClasspathIndex classpath, long maxBytesInFlight) throws IOException {
+        InheritanceMapper inheritanceMapper = new InheritanceMapper(classpath);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ByteBudget budget = new ByteBudget(maxBytesInFlight);
+        try {
+            List<Future<String>> scans = new ArrayList<>();
+            while (entries.hasNext()) {
+                Map.Entry<String, byte[]> entry = entries.next();
+                if (entry.getKey().endsWith(".class")) {
+                    byte[] data = entry.getValue();
+                    int cost = budget.getCost(data.length);
+                    budget.acquire(cost);
+                    scans.add(workers.submit(() -> {
+                        try {
+                            return inheritanceMapper.visitClass(data);
+                        } finally {
+                            budget.release(cost);
+                        }
+                    }));
+                }
+            }
+
+            List<String> classNames = new ArrayList<>();
+            for (Future<String> scan : scans) {
+                classNames.add(Futures.waitFor(scan));
+            }
+
+            if (classpath != null) loadSupertypes(inheritanceMapper, classNames, workers);
+        } finally {
+            workers.shutdownNow();
         }
         return inheritanceMapper;
     }
 
+    private static void loadSupertypes(InheritanceMapper inheritanceMapper, List<String> classNames, ExecutorService workers) throws IOException {
+        List<Future<?>> supertypeScans = new ArrayList<>();
+        for (String className : classNames) {
+            supertypeScans.add(workers.submit(() -> inheritanceMapper.getAllSuperclasses(className)));
+        }
+
+        for (Future<?> scan : supertypeScans) {
+            Futures.waitFor(scan);
+        }
+    }
+
     public void remapJar(File inputFile, File remapTarget, InheritanceProvider inheritanceProvider) throws IOException {
-        // Initialize the remapper using the mapping and inheritance provider
-        SimpleRemapper remapper = new SimpleRemapper(mapping, inheritanceProvider);
+        remapJar(inputFile, Collections.singletonMap(remapTarget, mapping), inheritanceProvider);
+    }
+
+    /**
+     * Remaps a jar with several mappings at once, writing one output jar per mapping. The jar is read and its
+     * inheritance is scanned once for all targets, and each class is parsed once.
+     */
+    public void remapJar(File inputFile, Map<File, ? extends ReadableMapping> targets) throws IOException {
+        long start = System.nanoTime();
+        InheritanceProvider inheritanceProvider = makeInheritanceProvider(inputFile, threads, classpath, snapshotDirectory);
+        long time = System.nanoTime() - start;
+        stats.addTime(RemapStats.Phase.INDEX, time);
+        stats.wallTime.add(time);
+
+        remapJar(inputFile, targets, inheritanceProvider);
+    }
+
+    public void remapJar(File inputFile, Map<File, ? extends ReadableMapping> targets, InheritanceProvider inheritanceProvider) throws IOException {
+        long start = System.nanoTime();
+
+        // Entries are remapped and compressed for all targets on the worker pool, and each target's jar is
+        // written in the original order by its own writer thread
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ExecutorService writerThreads = Executors.newFixedThreadPool(targets.size());
+        List<Target> targetList = new ArrayList<>();
+        HierarchyHashes hierarchyHashes = cache == null ? null : new HierarchyHashes(inheritanceProvider);
+        ByteBudget budget = new ByteBudget(maxBytesInFlight);
 
         // Copy jar classes, remapping them if necessary
-        try (JarFile jar = new JarFile(inputFile);
-             FileOutputStream fileOutputStream = new FileOutputStream(remapTarget);
-             JarOutputStream out = new JarOutputStream(fileOutputStream)) {
-            Enumeration<JarEntry> entries = jar.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry entry = entries.nextElement();
-
-                // Read the entry
-                InputStream in = jar.getInputStream(entry);
-                String name = entry.getName();
-                byte[] data = readStream(in);
-
-                // Don't copy signatures
-                if (name.endsWith(".DSA") || name.endsWith(".RSA") || name.endsWith(".EC") || name.endsWith(".SF")) {
-                    continue;
+        try (MappedJar jar = new MappedJar(inputFile)) {
+            int entryCount = 0;
+            for (MappedJar.Entry entry : jar.getEntries()) {
+                if (!isSignature(entry.name)) entryCount++;
+            }
+            int total = entryCount;
+            int[] written = {0}; // Entries written by all targets, guarded by itself
+
+            boolean finished = false;
+            try {
+                for (Map.Entry<File, ? extends ReadableMapping> targetEntry : targets.entrySet()) {
+                    Target target = new Target(targetEntry.getKey(), targetEntry.getValue(), inheritanceProvider);
+                    targetList.add(target);
+                    target.fingerprint = cache == null ? null : target.mapping.getFingerprint();
+                    target.writer = writerThreads.submit(() -> {
+                        RemappedEntry remappedEntry;
+                        while ((remappedEntry = target.pending.take().get()) != null) {
+                            // Write the new entry
+                            long writeStart = System.nanoTime();
+                            if (remappedEntry.data == null) {
+                                MappedJar.Entry entry = remappedEntry.unchangedEntry;
+                                target.out.writeRaw(entry.name, entry.method, entry.dosTime, entry.crc, entry.size, jar.getRawData(entry));
+                                stats.bytesWritten.add(entry.size);
+                            } else {
+                                target.out.write(remappedEntry.name, remappedEntry.compressedData);
+                                stats.bytesWritten.add(remappedEntry.data.length);
+                            }
+                            stats.addTime(RemapStats.Phase.WRITE, System.nanoTime() - writeStart);
+                            budget.release(remappedEntry.cost);
+
+                            // Each entry is reported once, by the writer that writes it last
+                            if (remappedEntry.source.writtenByAllTargets()) {
+                                synchronized (written) {
+                                    listener.entryWritten(remappedEntry.originalName, ++written[0], total);
+                                }
+                            }
+                        }
+                        return null;
+                    });
                 }
 
-                // Remap classes
-                if (name.endsWith(".class")) {
-                    String className = name.substring(0, name.length() - 6);
-                    data = remapClass(className, data, remapper);
-                    name = remapClassName(className, remapper) + ".class";
+                entries:
+                for (MappedJar.Entry entry : jar.getEntries()) {
+                    if (isAnyWriterDone(targetList)) break;
+
+                    // Don't copy signatures
+                    if (isSignature(entry.name)) continue;
+
+                    // Read the entry once, and remap it for each target
+                    stats.bytesRead.add(entry.size);
+                    if (entry.name.endsWith(".class")) {
+                        stats.classes.increment();
+                    } else {
+                        stats.resources.increment();
+                    }
+                    SharedEntry sharedEntry = new SharedEntry(jar, entry, hierarchyHashes, targetList.size());
+
+                    // Entries copied without inflating them don't take any memory
+                    int cost = budget.getCost(entry.name.endsWith(".class") || !copyUnchangedEntries ? entry.size : 0);
+                    for (Target target : targetList) {
+                        // Wait for the writers to catch up if too many bytes are in memory, unless one of them failed
+                        while (!budget.tryAcquire(cost, 100)) {
+                            if (isAnyWriterDone(targetList)) break entries;
+                        }
+                        target.pending.add(workers.submit(() -> {
+                            RemappedEntry remappedEntry = remapJarEntry(sharedEntry, target);
+                            remappedEntry.cost = cost;
+                            remappedEntry.source = sharedEntry;
+                            return remappedEntry;
+                        }));
+                    }
                 }
 
-                // Write the new entry
-                JarEntry newEntry = new JarEntry(name);
-                out.putNextEntry(newEntry);
-                out.write(data);
-                out.closeEntry();
+                for (Target target : targetList) {
+                    target.pending.add(CompletableFuture.completedFuture(null));
+                }
+                for (Target target : targetList) {
+                    Futures.waitFor(target.writer);
+                }
 
-                System.out.println(entry.getName());
+                boolean cached = false;
+                for (Target target : targetList) {
+                    stats.memberCacheHits.add(target.remapper.getCacheHits());
+                    stats.memberCacheMisses.add(target.remapper.getCacheMisses());
+                    cached |= target.fingerprint != null;
+                }
+                if (cached) cache.evict();
+                finished = true;
+            } finally {
+                // Stop the workers and writers before closing the jars they write to
+                shutdownAndWait(workers);
+                shutdownAndWait(writerThreads);
+                for (Target target : targetList) {
+                    // A writer that's still running (only if interrupted while waiting) keeps its jar open
+                    if (target.writer != null && !target.writer.isDone()) continue;
+                    try {
+                        target.close();
+                    } catch (IOException e) {
+                        // Closing a jar whose writer was stopped may fail, the failure that stopped it is more useful
+                        if (finished) throw e;
+                    }
+                }
             }
+        } finally {
+            stats.wallTime.add(System.nanoTime() - start);
+            workers.shutdownNow();
+            writerThreads.shutdownNow();
         }
     }
 
-    private String remapClassName(String name, Remapper remapper) {
-        return remapper.map(name);
+    /** Stops a pool's tasks, and waits for the ones already running to finish **/
+    private static void shutdownAndWait(ExecutorService executor) {
+        executor.shutdownNow();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    public byte[] remapClass(String name, byte[] data, Remapper remapper) {
-        // Read the class
-        ClassReader reader = new ClassReader(data);
-        ClassNode clazz = new ClassNode();
-        reader.accept(clazz, 0);
+    private static boolean isAnyWriterDone(List<Target> targets) {
+        for (Target target : targets) {
+            if (target.writer.isDone()) return true;
+        }
+        return false;
+    }
 
-        // Rename inner class innerNames
-        if (clazz.innerClasses != null) for (InnerClassNode innerClass : clazz.innerClasses) {
-            if (innerClass.innerName != null) {
-                String newName = mapping.mapClass(innerClass.name);
-                innerClass.innerName = newName.substring(newName.indexOf('$') + 1);
+    private RemappedEntry remapJarEntry(SharedEntry sharedEntry, Target target) throws IOException {
+        MappedJar.Entry entry = sharedEntry.entry;
+        String name = entry.name;
+        if (name.endsWith(".class")) {
+            String className = name.substring(0, name.length() - 6);
+            byte[] data = sharedEntry.getData();
+            long remapStart = System.nanoTime();
+            if (target.filter != null && !target.filter.mayBeRemapped(data)) {
+                stats.skippedClasses.increment();
+                return copyUnchangedEntries ? new RemappedEntry(entry) : compressed(target.out, name, name, data);
             }
+
+            byte[] remappedData = remapClass(sharedEntry, target.remapper, target.mapping, target.fingerprint);
+            String newName = remapClassName(className, target.remapper) + ".class";
+            stats.addTime(RemapStats.Phase.REMAP, System.nanoTime() - remapStart);
+            if (copyUnchangedEntries && newName.equals(name) && Arrays.equals(data, remappedData)) {
+                return new RemappedEntry(entry);
+            }
+            return compressed(target.out, name, newName, remappedData);
         }
 
-        // Rename local variables and add parameters
-        for (MethodNode method : clazz.methods) {
-            boolean isStatic = (method.access & Opcodes.ACC_STATIC) != 0;
-            int paramCount = Type.getArgumentTypes(method.desc).length;
+        // Resources are copied without inflating them
+        return copyUnchangedEntries ? new RemappedEntry(entry) : compressed(target.out, name, name, sharedEntry.getData());
+    }
 
-            // Add parameter names
-            if (method.parameters == null || method.parameters.size() < paramCount) {
-                method.parameters = new ArrayList<>();
-                for (int index = 0; index < paramCount; index++) { // TODO: implicit this?
-                    method.parameters.add(new ParameterNode(mapping.mapParameter(name, method.name, method.desc, index), 0));
-                }
-            }
+    /** Compresses a new entry on the current thread, so that the writer only has to copy it **/
+    private RemappedEntry compressed(JarWriter out, String originalName, String name, byte[] data) {
+        long compressStart = System.nanoTime();
+        JarWriter.CompressedData compressedData = out.compress(data);
+        stats.addTime(RemapStats.Phase.WRITE, System.nanoTime() - compressStart);
+        return new RemappedEntry(originalName, name, data, compressedData);
+    }
 
-            // Remove empty LVTs
-            if (method.localVariables != null && method.localVariables.size() < (isStatic ? paramCount : paramCount + 1)) {
-                if (method.localVariables.size() != 0 ) {
-                    System.out.println("WARNING: Removed non-empty LVT (size " + method.localVariables.size() + ")");
-                }
-                method.localVariables = null;
-            }
-
-            int index = 0;
-            HashMap<Integer, String> localNames = new HashMap<>();
-            int varSuffix = 0;
-            if (method.localVariables != null) for (LocalVariableNode local : method.localVariables) {
-                // Name the local
-                if (!isStatic && index == 0) {
-                    local.name = "this";
-                } else if (index < (isStatic ? paramCount : paramCount + 1)) {
-                    local.name = method.parameters.get(isStatic ? index : index - 1).name;
-                } else {
-                    local.name = mapping.getLocal(name, method.name, method.desc, index);
-
-                    // No mapping exists for that local, use name of previous local with
-                    // same index, desc and signature, or assign a unique name.
-                    int localHash = Objects.hash(local.index, local.desc, local.signature);
-                    if (local.name == null) {
-                        String localName = localNames.get(localHash);
-                        if (localName != null) {
-                            local.name = localName;
-                        } else {
-                            local.name = "var" + varSuffix++;
-                            localNames.put(localHash, local.name);
-                        }
+    /**
+     * Remaps a jar or an exploded directory on any filesystem, such as a zip filesystem. The output is
+     * written as an exploded directory if it's an existing directory, or as a jar otherwise. Jars on the
+     * default filesystem are remapped with remapJar(File, File), everything else is read one entry at a time.
+     */
+    public void remapJar(Path input, Path output) throws IOException {
+        FileSystem defaultFileSystem = FileSystems.getDefault();
+        if (!Files.isDirectory(input) && !Files.isDirectory(output) &&
+            input.getFileSystem() == defaultFileSystem && output.getFileSystem() == defaultFileSystem) {
+            remapJar(input.toFile(), output.toFile());
+            return;
+        }
+
+        // The entries are read twice, once to make the inheritance map and once to remap them
+        long start = System.nanoTime();
+        InheritanceProvider inheritanceProvider;
+        try (PathEntries entries = new PathEntries(input)) {
+            inheritanceProvider = makeInheritanceProvider(entries, threads, classpath, maxBytesInFlight);
+        }
+        long time = System.nanoTime() - start;
+        stats.addTime(RemapStats.Phase.INDEX, time);
+        stats.wallTime.add(time);
+
+        if (Files.isDirectory(output)) {
+            Path outputDirectory = output.normalize();
+            try (PathEntries entries = new PathEntries(input)) {
+                remapEntries(entries, (name, data) -> {
+                    // Don't let entry names such as "../x" or "/x" write outside of the output directory
+                    Path file = output.resolve(name).normalize();
+                    if (output.getFileSystem().getPath(name).isAbsolute() || !file.startsWith(outputDirectory)) {
+                        throw new IOException("Entry " + name + " is outside of the output directory");
+                    }
+                    if (name.endsWith("/")) {
+                        Files.createDirectories(file);
                     } else {
-                        localNames.put(localHash, local.name);
+                        Files.createDirectories(file.getParent());
+                        Files.write(file, data);
                     }
-                }
+                }, inheritanceProvider);
+            }
+        } else {
+            try (PathEntries entries = new PathEntries(input);
+                 JarWriter out = new JarWriter(Files.newByteChannel(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), compressionLevel)) {
+                remapEntries(entries, out::write, inheritanceProvider);
+            }
+        }
+    }
 
-                // Fix broken local start/end
-                if (local.start == local.end) { // TODO: Why does this happen?
-                    local.start = (LabelNode) method.instructions.getFirst();
-                    local.end = (LabelNode) method.instructions.getFirst();
-                }
+    /** Remaps entries in memory, such as the contents of a jar, returning the remapped entries by their new names **/
+    public Map<String, byte[]> remapEntries(Map<String, byte[]> entries) throws IOException {
+        long start = System.nanoTime();
+        InheritanceProvider inheritanceProvider = makeInheritanceProvider(entries.entrySet().iterator(), threads, classpath);
+        long time = System.nanoTime() - start;
+        stats.addTime(RemapStats.Phase.INDEX, time);
+        stats.wallTime.add(time);
 
-                index++;
-            } else {
-                // Generate LVT based on parameters, no LVT but not parameter list breaks Fernflower
-                method.localVariables = new ArrayList<>();
+        return remapEntries(entries, inheritanceProvider);
+    }
 
-                // Get the label node at the start of the method, or add it if it's missing
-                if (!(method.instructions.getFirst() instanceof LabelNode)) {
-                    method.instructions.insert(new LabelNode());
-                }
-                LabelNode firstLabel = (LabelNode) method.instructions.getFirst();
+    public Map<String, byte[]> remapEntries(Map<String, byte[]> entries, InheritanceProvider inheritanceProvider) throws IOException {
+        Map<String, byte[]> remappedEntries = new LinkedHashMap<>();
+        remapEntries(entries.entrySet().iterator(), remappedEntries::put, inheritanceProvider);
+        return remappedEntries;
+    }
 
-                // Add the implicit this parameter
-                if (!isStatic) {
-                    method.localVariables.add(new LocalVariableNode("this", "L" + clazz.name + ";", null, firstLabel, firstLabel, 0));
+    /**
+     * Remaps entries as they're read, passing them to the output in their original order, from the calling
+     * thread. Only a few entries per thread, and no more than maxBytesInFlight bytes of entries if it's set,
+     * are held in memory at once. The remap cache isn't used, since its keys depend on all classes of the jar.
+     */
+    public void remapEntries(Iterator<Map.Entry<String, byte[]>> input, EntryConsumer output, InheritanceProvider inheritanceProvider) throws IOException {
+        long start = System.nanoTime();
+        SimpleRemapper remapper = createRemapper(inheritanceProvider);
+        ConstantPoolFilter filter = skipUnmappedClasses ? ConstantPoolFilter.create(mapping) : null;
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Deque<Future<RemappedEntry>> pending = new ArrayDeque<>();
+        ByteBudget budget = new ByteBudget(maxBytesInFlight);
+        int written = 0;
+        try {
+            while (input.hasNext()) {
+                Map.Entry<String, byte[]> entry = input.next();
+                String name = entry.getKey();
+                byte[] data = entry.getValue();
+                if (isSignature(name)) continue;
+
+                stats.bytesRead.add(data.length);
+
+                // Pass on the oldest entries until there's room for this one, all of them release their bytes
+                int cost = budget.getCost(data.length);
+                while (!budget.tryAcquire(cost)) {
+                    passOn(Futures.waitFor(pending.poll()), output, ++written, budget);
                 }
-
-                // Add parameters to the LVT
-                Type[] paramTypes = Type.getArgumentTypes(method.desc);
-                int i = 0;
-                for (ParameterNode param : method.parameters) {
-                    method.localVariables.add(new LocalVariableNode(param.name, paramTypes[i].getDescriptor(), null, firstLabel, firstLabel, isStatic ? i : i + 1));
-                    i++;
+                pending.add(workers.submit(() -> {
+                    RemappedEntry remappedEntry = remapEntry(name, data, remapper, filter);
+                    remappedEntry.cost = cost;
+                    return remappedEntry;
+                }));
+
+                // Pass on finished entries, waiting for the oldest one if too many are in memory
+                while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > threads * 4)) {
+                    passOn(Futures.waitFor(pending.poll()), output, ++written, budget);
                 }
             }
+
+            while (!pending.isEmpty()) {
+                passOn(Futures.waitFor(pending.poll()), output, ++written, budget);
+            }
+        } finally {
+            stats.wallTime.add(System.nanoTime() - start);
+            workers.shutdownNow();
         }
+    }
 
-        // Write the transformed class
-        ClassWriter writer = new ClassWriter(0);
-        clazz.accept(writer);
-        data = writer.toByteArray();
+    private RemappedEntry remapEntry(String name, byte[] data, Remapper remapper, ConstantPoolFilter filter) {
+        if (!name.endsWith(".class")) {
+            stats.resources.increment();
+            return new RemappedEntry(name, name, data);
+        }
 
-        // TODO: Do this properly, use a single CustomClassRemapper rather than a class node followed by a ClassRemapper
+        stats.classes.increment();
+        if (filter != null && !filter.mayBeRemapped(data)) {
+            stats.skippedClasses.increment();
+            return new RemappedEntry(name, name, data);
+        }
 
-        reader = new ClassReader(data);
-        reader.accept(clazz, 0);
+        long remapStart = System.nanoTime();
+        String className = name.substring(0, name.length() - 6);
+        byte[] remappedData = remapClass(className, data, remapper);
+        String newName = remapClassName(className, remapper) + ".class";
+        stats.addTime(RemapStats.Phase.REMAP, System.nanoTime() - remapStart);
+        return new RemappedEntry(name, newName, remappedData);
+    }
 
-        ClassNode node = new ClassNode();
-        ClassRemapper classRemapper = new ClassRemapper(node, remapper);
-        reader.accept(classRemapper, 0);
+    private void passOn(RemappedEntry remappedEntry, EntryConsumer output, int written, ByteBudget budget) throws IOException {
+        long writeStart = System.nanoTime();
+        output.accept(remappedEntry.name, remappedEntry.data);
+        stats.bytesWritten.add(remappedEntry.data.length);
+        stats.addTime(RemapStats.Phase.WRITE, System.nanoTime() - writeStart);
+        budget.release(remappedEntry.cost);
+        listener.entryWritten(remappedEntry.originalName, written, -1);
+    }
+
+    private static boolean isSignature(String name) {
+        return name.endsWith(".DSA") || name.endsWith(".RSA") || name.endsWith(".EC") || name.endsWith(".SF");
+    }
+
+    private byte[] remapClass(SharedEntry sharedEntry, Remapper remapper, ReadableMapping mapping, byte[] fingerprint) throws IOException {
+        if (fingerprint == null) return remapClass(sharedEntry.getReader(), remapper, mapping);
+
+        // The key covers the mapping, the class and the hierarchies it depends on, so that changing a class only
+        // invalidates the classes that refer to it or to one of its subclasses
+        MessageDigest digest = RemapCache.newDigest();
+        digest.update(fingerprint);
+        digest.update(sharedEntry.getDependencyHash());
+        byte[] key = RemapCache.getKey(digest.digest(), sharedEntry.getData());
+        byte[] remappedData = cache.get(key);
+        if (remappedData == null) {
+            stats.remapCacheMisses.increment();
+            remappedData = remapClass(sharedEntry.getReader(), remapper, mapping);
+            cache.put(key, remappedData);
+        } else {
+            stats.remapCacheHits.increment();
+        }
+        return remappedData;
+    }
+
+    private String remapClassName(String name, Remapper remapper) {
+        return remapper.map(name);
+    }
 
-        writer = new ClassWriter(0);
-        node.accept(writer);
+    public byte[] remapClass(String name, byte[] data, Remapper remapper) {
+        return remapClass(new ClassReader(data), remapper, mapping);
+    }
+
+    private byte[] remapClass(ClassReader reader, Remapper remapper, ReadableMapping mapping) {
+        // Remap the class, renaming inner classes, parameters and locals in the same pass
+        ClassWriter writer = new ClassWriter(0);
+        reader.accept(new MappingClassRemapper(writer, remapper, mapping, stats, listener), 0);
         return writer.toByteArray();
     }
 
-    private static byte[] readStream(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        byte[] data = new byte[4096];
-        int bytesRead;
-        while ((bytesRead = inputStream.read(data, 0, data.length)) != -1) {
-            outputStream.write(data, 0, bytesRead);
+    private SimpleRemapper createRemapper(InheritanceProvider inheritanceProvider) {
+        if (sharedRemapper != null) return new SimpleRemapper(sharedRemapper, stats, listener);
+        return new SimpleRemapper(mapping, inheritanceProvider, stats, listener);
+    }
+
+    public interface EntryConsumer {
+        void accept(String name, byte[] data) throws IOException;
+    }
+
+    /** The output jar and remapper of one of the mappings a jar is remapped with **/
+    private class Target implements Closeable {
+        public final ReadableMapping mapping;
+        public final SimpleRemapper remapper;
+        public final ConstantPoolFilter filter;
+        public final FileOutputStream fileOutputStream;
+        public final JarWriter out;
+        public final BlockingQueue<Future<RemappedEntry>> pending = new LinkedBlockingQueue<>();
+        public byte[] fingerprint;
+        public Future<?> writer;
+
+        public Target(File remapTarget, ReadableMapping mapping, InheritanceProvider inheritanceProvider) throws IOException {
+            this.mapping = mapping;
+            remapper = mapping == JavaRemapper.this.mapping ? createRemapper(inheritanceProvider) : new SimpleRemapper(mapping, inheritanceProvider, stats, listener);
+            filter = skipUnmappedClasses ? ConstantPoolFilter.create(mapping) : null;
+            fileOutputStream = new FileOutputStream(remapTarget);
+            out = new JarWriter(fileOutputStream.getChannel(), compressionLevel);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                fileOutputStream.close();
+            }
+        }
+    }
+
+    /**
+     * An entry of the jar being remapped, which is read and parsed at most once however many targets it's
+     * remapped for. ClassReaders only cache immutable constants, so targets can share one from any thread.
+     */
+    private class SharedEntry {
+        public final MappedJar jar;
+        public final MappedJar.Entry entry;
+        private final HierarchyHashes hierarchyHashes; // Null if the remap cache isn't used
+        private byte[] data;
+        private ClassReader reader;
+        private byte[] dependencyHash;
+        private int targetsLeft; // Targets that haven't written the entry yet
+
+        public SharedEntry(MappedJar jar, MappedJar.Entry entry, HierarchyHashes hierarchyHashes, int targets) {
+            this.jar = jar;
+            this.entry = entry;
+            this.hierarchyHashes = hierarchyHashes;
+            targetsLeft = targets;
+        }
+
+        public synchronized byte[] getData() throws IOException {
+            if (data == null) {
+                long readStart = System.nanoTime();
+                data = jar.getData(entry);
+                stats.addTime(RemapStats.Phase.READ, System.nanoTime() - readStart);
+            }
+            return data;
+        }
+
+        public synchronized ClassReader getReader() throws IOException {
+            if (reader == null) reader = new ClassReader(getData());
+            return reader;
+        }
+
+        public synchronized byte[] getDependencyHash() throws IOException {
+            if (dependencyHash == null) dependencyHash = hierarchyHashes.getDependencyHash(getReader());
+            return dependencyHash;
+        }
+
+        /** Called by each target's writer once it wrote the entry, returns true for the last one **/
+        public synchronized boolean writtenByAllTargets() {
+            return --targetsLeft == 0;
+        }
+    }
+
+    /**
+     * Hashes the hierarchies that remapping a class depends on: the superclasses and inheritable members of
+     * each class it refers to and of all their superclasses, including library and JDK classes. Each class's
+     * hash is computed once per jar.
+     */
+    private static class HierarchyHashes {
+        private final InheritanceProvider inheritanceProvider;
+        private final Map<String, byte[]> classHashes = new ConcurrentHashMap<>(); // Of the class alone
+        private final Map<String, byte[]> hierarchyHashes = new ConcurrentHashMap<>(); // Of the class and its superclasses
+
+        public HierarchyHashes(InheritanceProvider inheritanceProvider) {
+            this.inheritanceProvider = inheritanceProvider;
+        }
+
+        public byte[] getDependencyHash(ClassReader reader) {
+            // Member references are resolved through the hierarchy of their owner, which is a class constant, and
+            // overrides are checked against the supertypes of the method's return type
+            Set<String> classNames = new TreeSet<>();
+            char[] buffer = new char[reader.getMaxStringLength()];
+            for (int item = 1; item < reader.getItemCount(); item++) {
+                int offset = reader.getItem(item);
+                if (offset == 0) continue; // The unused item after a long or a double
+                int tag = reader.b[offset - 1];
+                if (tag == 7) { // Class
+                    addClassName(classNames, Type.getObjectType(reader.readUTF8(offset, buffer)));
+                } else if (tag == 12) { // NameAndType
+                    String descriptor = reader.readUTF8(offset + 2, buffer);
+                    if (descriptor.startsWith("(")) addClassName(classNames, Type.getReturnType(descriptor));
+                }
+            }
+
+            MessageDigest digest = RemapCache.newDigest();
+            for (String className : classNames) digest.update(getHierarchyHash(className));
+            return digest.digest();
+        }
+
+        private static void addClassName(Set<String> classNames, Type type) {
+            if (type.getSort() == Type.ARRAY) type = type.getElementType();
+            if (type.getSort() == Type.OBJECT) classNames.add(type.getInternalName());
+        }
+
+        private byte[] getHierarchyHash(String className) {
+            byte[] hash = hierarchyHashes.get(className);
+            if (hash != null) return hash;
+
+            Set<String> classNames = new TreeSet<>(inheritanceProvider.getAllSuperclasses(className));
+            classNames.add(className);
+            MessageDigest digest = RemapCache.newDigest();
+            for (String name : classNames) digest.update(getClassHash(name));
+            hash = digest.digest();
+            hierarchyHashes.put(className, hash);
+            return hash;
+        }
+
+        private byte[] getClassHash(String className) {
+            byte[] hash = classHashes.get(className);
+            if (hash != null) return hash;
+
+            List<String> lines = new ArrayList<>();
+            for (String superclass : inheritanceProvider.getSuperclasses(className)) lines.add("S " + superclass);
+            for (MemberRef field : inheritanceProvider.getInheritableFields(className)) lines.add("F " + field.name + " " + field.descriptor);
+            for (MemberRef method : inheritanceProvider.getInheritableMethods(className)) lines.add("M " + method.name + " " + method.descriptor);
+            Collections.sort(lines);
+
+            MessageDigest digest = RemapCache.newDigest();
+            digest.update(("C " + className + "\n").getBytes(StandardCharsets.UTF_8));
+            for (String line : lines) digest.update((line + "\n").getBytes(StandardCharsets.UTF_8));
+            hash = digest.digest();
+            classHashes.put(className, hash);
+            return hash;
+        }
+    }
+
+    /** Limits the bytes of entries kept in memory at once, making readers wait until enough bytes are released **/
+    private static class ByteBudget {
+        private final int maxBytes; // 0 for no limit
+        private final Semaphore permits;
+
+        public ByteBudget(long maxBytes) {
+            this.maxBytes = (int) Math.max(0, Math.min(maxBytes, Integer.MAX_VALUE));
+            permits = new Semaphore(this.maxBytes);
+        }
+
+        /** Gets the bytes an entry takes from the budget. Entries larger than the budget take all of it, so they're read once nothing else is in memory. **/
+        public int getCost(long size) {
+            return (int) Math.min(size, maxBytes);
+        }
+
+        public boolean tryAcquire(int bytes) {
+            return permits.tryAcquire(bytes);
+        }
+
+        public boolean tryAcquire(int bytes, long timeoutMillis) throws InterruptedIOException {
+            try {
+                return permits.tryAcquire(bytes, timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        public void acquire(int bytes) throws InterruptedIOException {
+            try {
+                permits.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        public void release(int bytes) {
+            permits.release(bytes);
+        }
+    }
+
+    private static class RemappedEntry {
+        public final String originalName;
+        public final String name;
+        public final byte[] data;
+        public final JarWriter.CompressedData compressedData;
+        public final MappedJar.Entry unchangedEntry;
+        public int cost; // Bytes of the in-flight budget held until the entry is written
+        public SharedEntry source; // The entry of the jar it was remapped from, when remapping for several targets
+
+        public RemappedEntry(String originalName, String name, byte[] data) {
+            this(originalName, name, data, null);
+        }
+
+        public RemappedEntry(String originalName, String name, byte[] data, JarWriter.CompressedData compressedData) {
+            this.originalName = originalName;
+            this.name = name;
+            this.data = data;
+            this.compressedData = compressedData;
+            unchangedEntry = null;
+        }
+
+        public RemappedEntry(MappedJar.Entry unchangedEntry) {
+            originalName = unchangedEntry.name;
+            name = unchangedEntry.name;
+            data = null;
+            compressedData = null;
+            this.unchangedEntry = unchangedEntry;
         }
-        outputStream.flush();
-        return outputStream.toByteArray();
     }
 }
@@ -0,0 +1,176 @@
+package org.dimdev.javaremapper;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Splits the lines read from a Reader into tokens on a single separator character, without regexes or
+ * intermediate arrays. Like String.split, consecutive separators give empty tokens, and trailing empty
+ * tokens are dropped. Token strings are interned in a pool local to the tokenizer, so repeated names
+ * share a single instance.
+ */
+public class LineTokenizer {
+    private final Reader reader;
+    private final char separator;
+    private final char[] buffer = new char[64 * 1024];
+    private int position = 0;
+    private int limit = 0;
+    private char[] line = new char[256];
+    private int lineLength = 0;
+    private int[] tokenStarts = new int[8];
+    private int[] tokenEnds = new int[8];
+    private int tokenCount = 0;
+    private int lineNumber = 0;
+    private String[] pool = new String[4096];
+    private int poolSize = 0;
+
+    public LineTokenizer(Reader reader, char separator) {
+        this.reader = reader;
+        this.separator = separator;
+    }
+
+    /** Reads the next line, returning false at the end of the input **/
+    public boolean nextLine() throws IOException {
+        lineLength = 0;
+        boolean readAnything = false;
+        while (true) {
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    if (!readAnything) return false;
+                    break;
+                }
+            }
+
+            char c = buffer[position++];
+            readAnything = true;
+            if (c == '\n') break;
+            if (c == '\r') {
+                // Skip the \n of a \r\n line ending
+                if (position == limit) {
+                    limit = reader.read(buffer, 0, buffer.length);
+                    position = 0;
+                    if (limit <= 0) limit = 0;
+                }
+                if (position < limit && buffer[position] == '\n') position++;
+                break;
+            }
+
+            if (lineLength == line.length) line = Arrays.copyOf(line, line.length * 2);
+            line[lineLength++] = c;
+        }
+
+        lineNumber++;
+        split();
+        return true;
+    }
+
+    private void split() {
+        tokenCount = 0;
+        int start = 0;
+        for (int i = 0; i <= lineLength; i++) {
+            if (i == lineLength || line[i] == separator) {
+                if (tokenCount == tokenStarts.length) {
+                    tokenStarts = Arrays.copyOf(tokenStarts, tokenCount * 2);
+                    tokenEnds = Arrays.copyOf(tokenEnds, tokenCount * 2);
+                }
+                tokenStarts[tokenCount] = start;
+                tokenEnds[tokenCount] = i;
+                tokenCount++;
+                start = i + 1;
+            }
+        }
+
+        // Drop trailing empty tokens, keeping the first one so that an empty line has one empty token
+        while (tokenCount > 1 && tokenStarts[tokenCount - 1] == tokenEnds[tokenCount - 1]) tokenCount--;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public int getTokenCount() {
+        return tokenCount;
+    }
+
+    public boolean lineStartsWith(String prefix) {
+        if (lineLength < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    public boolean tokenEquals(int index, String value) {
+        int start = tokenStarts[index];
+        int length = tokenEnds[index] - start;
+        if (length != value.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (line[start + i] != value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    public String getLine() {
+        return new String(line, 0, lineLength);
+    }
+
+    public String getToken(int index) {
+        int start = tokenStarts[index];
+        int end = tokenEnds[index];
+
+        int hash = 0;
+        for (int i = start; i < end; i++) hash = 31 * hash + line[i];
+
+        // Look the token up in the pool, which is an open-addressing hash table
+        int mask = pool.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            String pooled = pool[slot];
+            if (pooled == null) {
+                String token = new String(line, start, end - start);
+                pool[slot] = token;
+                if (++poolSize * 2 > pool.length) growPool();
+                return token;
+            }
+            if (pooled.hashCode() == hash && tokenEquals(index, pooled)) return pooled;
+        }
+    }
+
+    public int getIntToken(int index) throws IOException {
+        int start = tokenStarts[index];
+        int end = tokenEnds[index];
+        if (start == end || end - start > 9) throw error("Invalid number \"" + new String(line, start, end - start) + "\"");
+
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            char c = line[i];
+            if (c < '0' || c > '9') throw error("Invalid number \"" + new String(line, start, end - start) + "\"");
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /** Creates an exception for malformed input on the current line **/
+    public IOException error(String message) {
+        return new IOException("Line " + lineNumber + ": " + message + " (\"" + getLine() + "\")");
+    }
+
+    private void growPool() {
+        String[] oldPool = pool;
+        pool = new String[oldPool.length * 2];
+        int mask = pool.length - 1;
+        for (String token : oldPool) {
+            if (token == null) continue;
+            int slot = mix(token.hashCode()) & mask;
+            while (pool[slot] != null) slot = (slot + 1) & mask;
+            pool[slot] = token;
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,271 @@
+package org.dimdev.javaremapper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A memory-mapped jar file, which reads the ZIP central directory itself and reads entries directly
+ * from the mapped file. Entries can be read from several threads at once.
+ */
+public class MappedJar implements Closeable {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int ENCRYPTED_FLAGS = 0x0001 | 0x0040 | 0x2000; // Encrypted, strong encryption, encrypted central directory
+    private static final int UTF8_FLAG = 0x0800;
+    // Names without the UTF-8 flag are in the original PC code page, like ZIP tools other than Java write them
+    private static final Charset CP437 = Charset.isSupported("IBM437") ? Charset.forName("IBM437") : StandardCharsets.ISO_8859_1;
+    private static final ThreadLocal<byte[]> INPUT_BUFFERS = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long length;
+    private final MappedByteBuffer buffer; // null if the file is too large to map at once
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, Entry> entriesByName = new HashMap<>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>(); // Reused by getData, ended when the jar is closed
+    private volatile boolean closed = false;
+
+    public MappedJar(File jarFile) throws IOException {
+        file = new RandomAccessFile(jarFile, "r");
+        try {
+            channel = file.getChannel();
+            length = channel.size();
+            buffer = length <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, length) : null;
+            readCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /** Gets the entries in central directory order **/
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public Entry getEntry(String name) {
+        return entriesByName.get(name);
+    }
+
+    /** Gets the entry's data as stored in the jar, without inflating it. Encrypted entries can't be read. **/
+    public ByteBuffer getRawData(Entry entry) throws IOException {
+        if ((entry.flags & ENCRYPTED_FLAGS) != 0) throw new ZipException("Encrypted entry " + entry.name + " isn't supported");
+        ByteBuffer localHeader = slice(entry.localHeaderOffset, 30);
+        if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) throw new ZipException("Bad local header for " + entry.name);
+        int headerLength = 30 + (localHeader.getShort(26) & 0xFFFF) + (localHeader.getShort(28) & 0xFFFF);
+        return slice(entry.localHeaderOffset + headerLength, toInt(entry.compressedSize, entry));
+    }
+
+    /** Gets the entry's uncompressed data, in an array of exactly the entry's size **/
+    public byte[] getData(Entry entry) throws IOException {
+        ByteBuffer raw = getRawData(entry);
+        byte[] data = new byte[toInt(entry.size, entry)];
+
+        if (entry.method == Entry.STORED) {
+            if (entry.compressedSize != entry.size) throw new ZipException("Bad size for stored entry " + entry.name);
+            raw.get(data);
+        } else if (entry.method == Entry.DEFLATED) {
+            Inflater inflater = inflaters.poll();
+            if (inflater == null) inflater = new Inflater(true);
+            try {
+                inflate(inflater, raw, data, entry);
+            } finally {
+                inflater.reset();
+                release(inflater);
+            }
+        } else {
+            throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if (crc.getValue() != entry.crc) throw new ZipException("Bad CRC for " + entry.name);
+        return data;
+    }
+
+    private void release(Inflater inflater) {
+        // Inflaters released after the jar is closed are ended here instead of by close
+        if (closed) {
+            inflater.end();
+            return;
+        }
+        inflaters.add(inflater);
+        if (closed && inflaters.remove(inflater)) inflater.end();
+    }
+
+    private static void inflate(Inflater inflater, ByteBuffer raw, byte[] data, Entry entry) throws IOException {
+        // Inflater only takes arrays on Java 8, so the compressed data goes through a reused per-thread buffer
+        byte[] input = INPUT_BUFFERS.get();
+        try {
+            int written = 0;
+            boolean dummyByteUsed = false;
+            while (written < data.length) {
+                if (inflater.needsInput()) {
+                    int count = Math.min(raw.remaining(), input.length);
+                    if (count == 0) {
+                        // The raw deflate stream might need a dummy byte to finish
+                        if (dummyByteUsed) break;
+                        dummyByteUsed = true;
+                        input[0] = 0;
+                        count = 1;
+                    } else {
+                        raw.get(input, 0, count);
+                    }
+                    inflater.setInput(input, 0, count);
+                }
+
+                int inflated = inflater.inflate(data, written, data.length - written);
+                if (inflated == 0 && (inflater.finished() || inflater.needsDictionary())) break;
+                written += inflated;
+            }
+            if (written != data.length) throw new ZipException("Bad size for " + entry.name);
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid compressed data for " + entry.name + ": " + e.getMessage());
+        }
+    }
+
+    private ByteBuffer slice(long offset, int size) throws IOException {
+        if (offset < 0 || offset + size > length) throw new ZipException("Entry data out of bounds");
+        ByteBuffer result;
+        if (buffer != null) {
+            result = buffer.duplicate();
+            result.position((int) offset).limit((int) offset + size);
+            result = result.slice();
+        } else {
+            result = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        }
+        return result.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void readCentralDirectory() throws IOException {
+        // Find the end of central directory record, which is followed by a comment of up to 64 KB
+        int tailLength = (int) Math.min(length, 0xFFFF + 22);
+        ByteBuffer tail = slice(length - tailLength, tailLength);
+        int end = -1;
+        for (int i = tailLength - 22; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) throw new ZipException("Not a zip file (end of central directory not found)");
+
+        long entryCount = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+
+        // Zip64 jars store the real values in the zip64 end of central directory record
+        if (end >= 20 && tail.getInt(end - 20) == ZIP64_LOCATOR_SIGNATURE) {
+            long zip64EndOffset = tail.getLong(end - 12);
+            ByteBuffer zip64End = slice(zip64EndOffset, 56);
+            if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) throw new ZipException("Bad zip64 end of central directory");
+            entryCount = zip64End.getLong(32);
+            directorySize = zip64End.getLong(40);
+            directoryOffset = zip64End.getLong(48);
+        }
+
+        ByteBuffer directory = slice(directoryOffset, toInt(directorySize, null));
+        int position = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) throw new ZipException("Bad central directory entry");
+            int flags = directory.getShort(position + 8) & 0xFFFF;
+            int method = directory.getShort(position + 10) & 0xFFFF;
+            int dosTime = directory.getInt(position + 12);
+            long crc = directory.getInt(position + 16) & 0xFFFFFFFFL;
+            long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+            long size = directory.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(position + 46);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, (flags & UTF8_FLAG) != 0 || isAscii(nameBytes) ? StandardCharsets.UTF_8 : CP437);
+
+            // Read 64 bit sizes and offset from the zip64 extra field, present only for values that overflowed
+            int extra = position + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = directory.getShort(extra) & 0xFFFF;
+                int dataLength = directory.getShort(extra + 2) & 0xFFFF;
+                if (id == ZIP64_EXTRA_ID) {
+                    int field = extra + 4;
+                    if (size == 0xFFFFFFFFL) { size = directory.getLong(field); field += 8; }
+                    if (compressedSize == 0xFFFFFFFFL) { compressedSize = directory.getLong(field); field += 8; }
+                    if (localHeaderOffset == 0xFFFFFFFFL) localHeaderOffset = directory.getLong(field);
+                }
+                extra += 4 + dataLength;
+            }
+
+            Entry entry = new Entry(name, flags, method, dosTime, crc, compressedSize, size, localHeaderOffset);
+            entries.add(entry);
+            entriesByName.putIfAbsent(name, entry);
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private static boolean isAscii(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0) return false;
+        }
+        return true;
+    }
+
+    private static int toInt(long size, Entry entry) throws ZipException {
+        if (size > Integer.MAX_VALUE) throw new ZipException((entry == null ? "Central directory" : entry.name) + " is too large");
+        return (int) size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null) inflater.end();
+        file.close();
+    }
+
+    public static class Entry {
+        public static final int STORED = 0;
+        public static final int DEFLATED = 8;
+
+        public final String name;
+        public final int flags; // General purpose bit flags
+        public final int method;
+        public final int dosTime;
+        public final long crc;
+        public final long compressedSize;
+        public final long size;
+        public final long localHeaderOffset;
+
+        public Entry(String name, int flags, int method, int dosTime, long crc, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+}
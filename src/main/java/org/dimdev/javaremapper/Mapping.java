@@ -1,117 +1,253 @@
 package org.dimdev.javaremapper;
 
-import java.io.PrintWriter;
-import java.io.Reader;
-import java.io.Writer;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Scanner;
-
-public class Mapping {
+import org.objectweb.asm.commons.Remapper;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+
+public class Mapping implements ReadableMapping {
+    // Lookups only read these, so a loaded mapping can be shared between remapping threads
+    public final MemberTable<String> methodTable = new MemberTable<>();
+    public final MemberTable<String> fieldTable = new MemberTable<>();
+    public final MemberTable<String[]> parameterTable = new MemberTable<>(); // Names by parameter index
+    public final MemberTable<String[]> localTable = new MemberTable<>(); // Names by local index
+
+    // Views of the tables keyed by "class name descriptor", and "class method descriptor index" for
+    // parameters and locals
     public Map<String, String> classes = new LinkedHashMap<>();
-    public Map<String, String> methods = new LinkedHashMap<>();
-    public Map<String, String> fields = new LinkedHashMap<>();
-    public Map<String, String> parameters = new LinkedHashMap<>();
-    public Map<String, String> locals = new LinkedHashMap<>();
+    public final Map<String, String> methods = MemberMaps.of(methodTable);
+    public final Map<String, String> fields = MemberMaps.of(fieldTable);
+    public final Map<String, String> parameters = MemberMaps.ofIndexed(parameterTable);
+    public final Map<String, String> locals = MemberMaps.ofIndexed(localTable);
 
+    @Override
     public String getClass(String className) {
         return classes.get(className);
     }
 
+    @Override
     public String getField(String className, String fieldName, String fieldDescriptor) {
-        String newName = fields.get(className + " " + fieldName + " " + fieldDescriptor);
+        String newName = fieldTable.get(className, fieldName, fieldDescriptor);
         if (newName != null) return newName;
 
-        return fields.get(className + " " + fieldName + " *");
+        return fieldTable.get(className, fieldName, "*");
     }
 
+    @Override
     public String getMethod(String className, String methodName, String methodDescriptor) {
-        return methods.get(className + " " + methodName + " " + methodDescriptor);
+        return methodTable.get(className, methodName, methodDescriptor);
     }
 
+    @Override
     public String getParameter(String className, String methodName, String methodDescriptor, int index) {
-        return parameters.get(className + " " + methodName + " " + methodDescriptor + " " + index);
+        return getIndexed(parameterTable, className, methodName, methodDescriptor, index);
     }
 
+    @Override
     public String getLocal(String className, String methodName, String methodDescriptor, int index) {
-        return locals.get(className + " " + methodName + " " + methodDescriptor + " " + index);
+        return getIndexed(localTable, className, methodName, methodDescriptor, index);
     }
 
-    public String mapClass(String className) {
-        String newName = getClass(className);
-        return newName == null ? className : newName;
+    private static String getIndexed(MemberTable<String[]> table, String className, String methodName, String methodDescriptor, int index) {
+        String[] names = table.get(className, methodName, methodDescriptor);
+        return names == null || index < 0 || index >= names.length ? null : names[index];
     }
 
-    public String mapField(String className, String fieldName, String fieldDescriptor) {
-        String newName = getField(className, fieldName, fieldDescriptor);
-        return newName == null ? fieldName : newName;
+    public void addClass(String className, String newName) {
+        classes.put(className, newName);
     }
 
-    public String mapMethod(String className, String methodName, String methodDescriptor) {
-        String newName = getMethod(className, methodName, methodDescriptor);
-        return newName == null ? methodName : newName;
+    public void addField(String className, String fieldName, String fieldDescriptor, String newName) {
+        fieldTable.put(className, fieldName, fieldDescriptor, newName);
     }
 
-    public String mapParameter(String className, String methodName, String methodDescriptor, int index) {
-        String newName = getParameter(className, methodName, methodDescriptor, index);
-        return newName == null ? "par" + index : newName;
+    public void addMethod(String className, String methodName, String methodDescriptor, String newName) {
+        methodTable.put(className, methodName, methodDescriptor, newName);
     }
 
-    public String mapLocal(String className, String methodName, String methodDescriptor, int index) {
-        String newName = getLocal(className, methodName, methodDescriptor, index);
-        return newName == null ? "var" + index : newName;
+    public void addParameter(String className, String methodName, String methodDescriptor, int index, String newName) {
+        addIndexed(parameterTable, className, methodName, methodDescriptor, index, newName);
     }
 
-    public void addClass(String className, String newName) {
-        classes.put(className, newName);
+    public void addLocal(String className, String methodName, String methodDescriptor, int index, String newName) {
+        addIndexed(localTable, className, methodName, methodDescriptor, index, newName);
     }
 
-    public void addField(String className, String fieldName, String fieldDescriptor, String newName) {
-        fields.put(className + " " + fieldName + " " + fieldDescriptor, newName);
+    static void addIndexed(MemberTable<String[]> table, String className, String methodName, String methodDescriptor, int index, String newName) {
+        String[] names = table.get(className, methodName, methodDescriptor);
+        if (names == null) {
+            names = new String[index + 1];
+            table.put(className, methodName, methodDescriptor, names);
+        } else if (index >= names.length) {
+            names = Arrays.copyOf(names, index + 1);
+            table.put(className, methodName, methodDescriptor, names);
+        }
+        names[index] = newName;
     }
 
-    public void addMethod(String className, String methodName, String methodDescriptor, String newName) {
-        methods.put(className + " " + methodName + " " + methodDescriptor, newName);
+    /**
+     * Gets the names this mapping can rename: the original names of mapped classes, fields and methods, and
+     * the classes that have mapped parameters or locals. Returns null if any name may be renamed.
+     */
+    @Override
+    public Set<String> getMappedNames() {
+        Set<String> names = new HashSet<>(classes.keySet());
+        fieldTable.forEach((className, name, descriptor, newName) -> names.add(name));
+        methodTable.forEach((className, name, descriptor, newName) -> names.add(name));
+        parameterTable.forEach((className, name, descriptor, newNames) -> names.add(className));
+        localTable.forEach((className, name, descriptor, newNames) -> names.add(className));
+        return names;
     }
 
-    public void addParameter(String className, String methodName, String methodDescriptor, int index, String newName) {
-        parameters.put(className + " " + methodName + " " + methodDescriptor + " " + index, newName);
+    /** Gets a mapping with all entries in memory, which is this mapping unless its entries are stored elsewhere **/
+    @Override
+    public Mapping toMapping() {
+        return this;
     }
 
-    public void addLocal(String className, String methodName, String methodDescriptor, int index, String newName) {
-        locals.put(className + " " + methodName + " " + methodName + " " + index, newName);
+    /** Creates a mapping that maps names the way this mapping followed by the next mapping does **/
+    @Override
+    public Mapping compose(ReadableMapping nextMapping) {
+        Mapping first = toMapping();
+        Mapping next = nextMapping.toMapping();
+        Mapping inverse = first.invert();
+        Remapper descriptorRemapper = first.getDescriptorRemapper();
+        Mapping result = new Mapping();
+
+        // Classes renamed by this mapping, and then possibly by the next one
+        for (Map.Entry<String, String> entry : first.classes.entrySet()) {
+            result.addClass(entry.getKey(), next.mapClass(entry.getValue()));
+        }
+
+        // Classes renamed only by the next mapping, and not the target of a class renamed by this one
+        for (Map.Entry<String, String> entry : next.classes.entrySet()) {
+            if (inverse.getClass(entry.getKey()) == null && !first.classes.containsKey(entry.getKey())) {
+                result.addClass(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Members are looked up in the next mapping by the intermediate owner, name and descriptor
+        first.fieldTable.forEach((className, name, descriptor, newName) -> {
+            String nextName = next.getField(first.mapClass(className), newName, mapFieldDescriptor(descriptorRemapper, descriptor));
+            result.addField(className, name, descriptor, nextName == null ? newName : nextName);
+        });
+        first.methodTable.forEach((className, name, descriptor, newName) -> {
+            String nextName = next.getMethod(first.mapClass(className), newName, descriptorRemapper.mapMethodDesc(descriptor));
+            result.addMethod(className, name, descriptor, nextName == null ? newName : nextName);
+        });
+
+        // Members only the next mapping renames are translated back to the original names
+        Remapper inverseDescriptorRemapper = inverse.getDescriptorRemapper();
+        next.fieldTable.forEach((className, name, descriptor, newName) -> {
+            // Wildcard descriptors match any descriptor of the field
+            if (inverse.getField(className, name, descriptor) != null) return;
+            if (descriptor.equals("*") && inverse.fieldTable.contains(className, name)) return;
+            result.fieldTable.put(inverse.mapClass(className), name, mapFieldDescriptor(inverseDescriptorRemapper, descriptor), newName);
+        });
+        next.methodTable.forEach((className, name, descriptor, newName) -> {
+            if (inverse.methodTable.get(className, name, descriptor) != null) return;
+            result.methodTable.put(inverse.mapClass(className), name, inverseDescriptorRemapper.mapMethodDesc(descriptor), newName);
+        });
+
+        // Parameter and local names of the next mapping replace the ones of this mapping
+        first.parameterTable.forEach((className, name, descriptor, names) -> addAllIndexed(result.parameterTable, className, name, descriptor, names));
+        first.localTable.forEach((className, name, descriptor, names) -> addAllIndexed(result.localTable, className, name, descriptor, names));
+        next.parameterTable.forEach((className, name, descriptor, names) -> addAllIndexed(result.parameterTable, inverse.mapClass(className),
+                inverse.mapMethod(className, name, descriptor), inverseDescriptorRemapper.mapMethodDesc(descriptor), names));
+        next.localTable.forEach((className, name, descriptor, names) -> addAllIndexed(result.localTable, inverse.mapClass(className),
+                inverse.mapMethod(className, name, descriptor), inverseDescriptorRemapper.mapMethodDesc(descriptor), names));
+
+        return result;
+    }
+
+    /** Creates a mapping that maps the new names of this mapping back to the original names **/
+    @Override
+    public Mapping invert() {
+        Mapping mapping = toMapping();
+        Remapper descriptorRemapper = mapping.getDescriptorRemapper();
+        Mapping result = new Mapping();
+
+        for (Map.Entry<String, String> entry : mapping.classes.entrySet()) {
+            result.addClass(entry.getValue(), entry.getKey());
+        }
+        mapping.fieldTable.forEach((className, name, descriptor, newName) ->
+                result.addField(mapping.mapClass(className), newName, mapFieldDescriptor(descriptorRemapper, descriptor), name));
+        mapping.methodTable.forEach((className, name, descriptor, newName) ->
+                result.addMethod(mapping.mapClass(className), newName, descriptorRemapper.mapMethodDesc(descriptor), name));
+
+        // Parameter and local names aren't part of a method's identity, so they're kept
+        mapping.parameterTable.forEach((className, name, descriptor, names) -> addAllIndexed(result.parameterTable, mapping.mapClass(className),
+                mapping.mapMethod(className, name, descriptor), descriptorRemapper.mapMethodDesc(descriptor), names));
+        mapping.localTable.forEach((className, name, descriptor, names) -> addAllIndexed(result.localTable, mapping.mapClass(className),
+                mapping.mapMethod(className, name, descriptor), descriptorRemapper.mapMethodDesc(descriptor), names));
+
+        return result;
+    }
+
+    private Remapper getDescriptorRemapper() {
+        return new Remapper() {
+            @Override
+            public String map(String typeName) {
+                return mapClass(typeName);
+            }
+        };
+    }
+
+    private static String mapFieldDescriptor(Remapper descriptorRemapper, String descriptor) {
+        return descriptor.equals("*") ? descriptor : descriptorRemapper.mapDesc(descriptor);
     }
 
-    /** Reads the mappings from JAM format (https://github.com/caseif/JAM) **/
+    private static void addAllIndexed(MemberTable<String[]> table, String className, String methodName, String methodDescriptor, String[] names) {
+        for (int index = 0; index < names.length; index++) {
+            if (names[index] != null) addIndexed(table, className, methodName, methodDescriptor, index, names[index]);
+        }
+    }
+
+    /** Reads the mappings from JAM format (https://github.com/caseif/JAM), throwing UncheckedIOException if it fails **/
     public void readFromJAM(Reader reader) {
-        Scanner scanner = new Scanner(reader);
-
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine();
-            if (line.startsWith("//")) continue; // Comment
-
-            String[] entry = line.split(" ");
-            switch (entry[0]) {
-                case "CL":
-                    addClass(entry[1], entry[2]);
-                    break;
-                case "FD":
-                    addField(entry[1], entry[2], entry[3], entry[4]);
-                    break;
-                case "MD":
-                    addMethod(entry[1], entry[2], entry[3], entry[4]);
-                    break;
-                case "MP":
-                    addParameter(entry[1], entry[2], entry[3], Integer.parseInt(entry[4]), entry[5]);
-                    break;
-                case "LV":
-                    addLocal(entry[1], entry[2], entry[3], Integer.parseInt(entry[4]), entry[5]);
-                    break;
+        try {
+            readJAM(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void readJAM(Reader reader) throws IOException {
+        LineTokenizer tokenizer = new LineTokenizer(reader, ' ');
+
+        while (tokenizer.nextLine()) {
+            if (tokenizer.lineStartsWith("//")) continue; // Comment
+
+            if (tokenizer.tokenEquals(0, "CL")) {
+                checkTokenCount(tokenizer, 3);
+                addClass(tokenizer.getToken(1), tokenizer.getToken(2));
+            } else if (tokenizer.tokenEquals(0, "FD")) {
+                checkTokenCount(tokenizer, 5);
+                addField(tokenizer.getToken(1), tokenizer.getToken(2), tokenizer.getToken(3), tokenizer.getToken(4));
+            } else if (tokenizer.tokenEquals(0, "MD")) {
+                checkTokenCount(tokenizer, 5);
+                addMethod(tokenizer.getToken(1), tokenizer.getToken(2), tokenizer.getToken(3), tokenizer.getToken(4));
+            } else if (tokenizer.tokenEquals(0, "MP")) {
+                checkTokenCount(tokenizer, 6);
+                addParameter(tokenizer.getToken(1), tokenizer.getToken(2), tokenizer.getToken(3), tokenizer.getIntToken(4), tokenizer.getToken(5));
+            } else if (tokenizer.tokenEquals(0, "LV")) {
+                checkTokenCount(tokenizer, 6);
+                addLocal(tokenizer.getToken(1), tokenizer.getToken(2), tokenizer.getToken(3), tokenizer.getIntToken(4), tokenizer.getToken(5));
             }
         }
     }
 
+    private static void checkTokenCount(LineTokenizer tokenizer, int count) throws IOException {
+        if (tokenizer.getTokenCount() < count) {
+            throw tokenizer.error("Expected " + count + " tokens but found " + tokenizer.getTokenCount());
+        }
+    }
+
     /** Writes the mappings in JAM format (https://github.com/caseif/JAM) **/
+    @Override
     public void writeToJAM(Writer writer) {
         PrintWriter w = new PrintWriter(writer);
         // Write classes
@@ -120,25 +256,48 @@ public class Mapping {
         }
 
         // Write fields
-        for (Map.Entry<String, String> entry : fields.entrySet()) {
-            w.println("FD " + entry.getKey() + " " + entry.getValue());
-        }
+        fieldTable.forEach((className, name, descriptor, newName) ->
+                w.println("FD " + className + " " + name + " " + descriptor + " " + newName));
 
         // Write methods
-        for (Map.Entry<String, String> entry : methods.entrySet()) {
-            w.println("MD " + entry.getKey() + " " + entry.getValue());
-        }
+        methodTable.forEach((className, name, descriptor, newName) ->
+                w.println("MD " + className + " " + name + " " + descriptor + " " + newName));
 
         // Write parameters
-        for (Map.Entry<String, String> entry : parameters.entrySet()) {
-            w.println("MP " + entry.getKey() + " " + entry.getValue());
-        }
+        parameterTable.forEach((className, name, descriptor, names) -> {
+            for (int index = 0; index < names.length; index++) {
+                if (names[index] != null) w.println("MP " + className + " " + name + " " + descriptor + " " + index + " " + names[index]);
+            }
+        });
 
         // Write locals
-        for (Map.Entry<String, String> entry : locals.entrySet()) {
-            w.println("LV " + entry.getKey() + " " + entry.getValue());
-        }
+        localTable.forEach((className, name, descriptor, names) -> {
+            for (int index = 0; index < names.length; index++) {
+                if (names[index] != null) w.println("LV " + className + " " + name + " " + descriptor + " " + index + " " + names[index]);
+            }
+        });
 
         w.flush();
     }
+
+    /** Writes the mappings in the binary format read by BinaryMapping **/
+    @Override
+    public void writeToBinary(OutputStream outputStream) throws IOException {
+        BinaryMapping.write(this, outputStream);
+    }
+
+    /** Gets a hash of the mapping's contents, or null if it can't be identified by its contents **/
+    @Override
+    public byte[] getFingerprint() {
+        MessageDigest digest = RemapCache.newDigest();
+        OutputStream nullStream = new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        };
+        writeToJAM(new OutputStreamWriter(new DigestOutputStream(nullStream, digest), StandardCharsets.UTF_8));
+        return digest.digest();
+    }
 }
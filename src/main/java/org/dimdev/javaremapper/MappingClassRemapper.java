@@ -0,0 +1,240 @@
+package org.dimdev.javaremapper;
+
+import org.objectweb.asm.*;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A ClassRemapper that also renames inner classes, adds parameter names and names or
+ * repairs the LVT, in the same pass as the remapping.
+ */
+public class MappingClassRemapper extends ClassRemapper {
+    private final ReadableMapping mapping;
+    private final RemapStats stats;
+    private final RemapListener listener;
+
+    public MappingClassRemapper(ClassVisitor classVisitor, Remapper remapper, ReadableMapping mapping) {
+        this(classVisitor, remapper, mapping, new RemapStats(), RemapListener.NONE);
+    }
+
+    public MappingClassRemapper(ClassVisitor classVisitor, Remapper remapper, ReadableMapping mapping, RemapStats stats, RemapListener listener) {
+        super(Opcodes.ASM6, classVisitor, remapper);
+        this.mapping = mapping;
+        this.stats = stats;
+        this.listener = listener;
+    }
+
+    @Override
+    public void visitInnerClass(String name, String outerName, String innerName, int access) {
+        // Rename inner class innerNames
+        if (innerName != null) {
+            String newName = mapping.mapClass(name);
+            innerName = newName.substring(newName.indexOf('$') + 1);
+        }
+        super.visitInnerClass(name, outerName, innerName, access);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        // Names are added before the method remapper, so they're looked up using the original names and
+        // the descriptors of the added locals get remapped
+        MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+        return methodVisitor == null ? null : new LocalNamingMethodVisitor(methodVisitor, access, name, descriptor);
+    }
+
+    private class LocalNamingMethodVisitor extends MethodVisitor {
+        private final String methodName;
+        private final String methodDescriptor;
+        private final boolean isStatic;
+        private final int paramCount;
+        private List<String> parameterNames = new ArrayList<>();
+        private List<Integer> parameterAccess = new ArrayList<>();
+        private boolean parametersVisited = false;
+        private Label firstLabel;
+        private List<LocalVariable> localVariables;
+
+        public LocalNamingMethodVisitor(MethodVisitor methodVisitor, int access, String name, String descriptor) {
+            super(Opcodes.ASM6, methodVisitor);
+            methodName = name;
+            methodDescriptor = descriptor;
+            isStatic = (access & Opcodes.ACC_STATIC) != 0;
+            paramCount = Type.getArgumentTypes(descriptor).length;
+        }
+
+        @Override
+        public void visitParameter(String name, int access) {
+            parameterNames.add(name);
+            parameterAccess.add(access);
+        }
+
+        private void visitParameters() {
+            if (parametersVisited) return;
+            parametersVisited = true;
+
+            // Add parameter names
+            if (parameterNames.size() < paramCount) {
+                parameterNames.clear();
+                parameterAccess.clear();
+                for (int index = 0; index < paramCount; index++) { // TODO: implicit this?
+                    parameterNames.add(mapping.mapParameter(className, methodName, methodDescriptor, index));
+                    parameterAccess.add(0);
+                }
+            }
+
+            for (int i = 0; i < parameterNames.size(); i++) {
+                super.visitParameter(parameterNames.get(i), parameterAccess.get(i));
+            }
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotationDefault() {
+            visitParameters();
+            return super.visitAnnotationDefault();
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+            visitParameters();
+            return super.visitAnnotation(descriptor, visible);
+        }
+
+        @Override
+        public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+            visitParameters();
+            return super.visitTypeAnnotation(typeRef, typePath, descriptor, visible);
+        }
+
+        @Override
+        public void visitAnnotableParameterCount(int parameterCount, boolean visible) {
+            visitParameters();
+            super.visitAnnotableParameterCount(parameterCount, visible);
+        }
+
+        @Override
+        public AnnotationVisitor visitParameterAnnotation(int parameter, String descriptor, boolean visible) {
+            visitParameters();
+            return super.visitParameterAnnotation(parameter, descriptor, visible);
+        }
+
+        @Override
+        public void visitAttribute(Attribute attribute) {
+            visitParameters();
+            super.visitAttribute(attribute);
+        }
+
+        @Override
+        public void visitCode() {
+            visitParameters();
+            super.visitCode();
+
+            // Label the start of the method for generated and repaired locals
+            firstLabel = new Label();
+            super.visitLabel(firstLabel);
+        }
+
+        @Override
+        public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {
+            if (localVariables == null) localVariables = new ArrayList<>();
+            localVariables.add(new LocalVariable(descriptor, signature, start, end, index));
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            // Remove empty LVTs
+            if (localVariables != null && localVariables.size() < (isStatic ? paramCount : paramCount + 1)) {
+                if (localVariables.size() != 0) {
+                    stats.lvtRepairs.increment();
+                    listener.warning("Removed non-empty LVT of " + className + "." + methodName + methodDescriptor + " (size " + localVariables.size() + ")");
+                }
+                localVariables = null;
+            }
+
+            if (localVariables != null) {
+                // Rename local variables
+                int index = 0;
+                HashMap<Integer, String> localNames = new HashMap<>();
+                int varSuffix = 0;
+                for (LocalVariable local : localVariables) {
+                    String name;
+
+                    // Name the local
+                    if (!isStatic && index == 0) {
+                        name = "this";
+                    } else if (index < (isStatic ? paramCount : paramCount + 1)) {
+                        name = parameterNames.get(isStatic ? index : index - 1);
+                    } else {
+                        name = mapping.getLocal(className, methodName, methodDescriptor, index);
+
+                        // No mapping exists for that local, use name of previous local with
+                        // same index, desc and signature, or assign a unique name.
+                        int localHash = Objects.hash(local.index, local.descriptor, local.signature);
+                        if (name == null) {
+                            String localName = localNames.get(localHash);
+                            if (localName != null) {
+                                name = localName;
+                            } else {
+                                name = "var" + varSuffix++;
+                                localNames.put(localHash, name);
+                            }
+                        } else {
+                            localNames.put(localHash, name);
+                        }
+                    }
+
+                    // Fix broken local start/end
+                    if (local.start == local.end) { // TODO: Why does this happen?
+                        stats.lvtRepairs.increment();
+                        local.start = firstLabel;
+                        local.end = firstLabel;
+                    }
+
+                    super.visitLocalVariable(name, local.descriptor, local.signature, local.start, local.end, local.index);
+                    index++;
+                }
+            } else {
+                // Generate LVT based on parameters, no LVT but not parameter list breaks Fernflower
+
+                // Add the implicit this parameter
+                if (!isStatic) {
+                    super.visitLocalVariable("this", "L" + className + ";", null, firstLabel, firstLabel, 0);
+                }
+
+                // Add parameters to the LVT
+                Type[] paramTypes = Type.getArgumentTypes(methodDescriptor);
+                for (int i = 0; i < parameterNames.size() && i < paramTypes.length; i++) {
+                    super.visitLocalVariable(parameterNames.get(i), paramTypes[i].getDescriptor(), null, firstLabel, firstLabel, isStatic ? i : i + 1);
+                }
+            }
+
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        @Override
+        public void visitEnd() {
+            // Abstract and native methods have no code, but still get parameter names
+            visitParameters();
+            super.visitEnd();
+        }
+    }
+
+    private static class LocalVariable {
+        public final String descriptor;
+        public final String signature;
+        public Label start;
+        public Label end;
+        public final int index;
+
+        public LocalVariable(String descriptor, String signature, Label start, Label end, int index) {
+            this.descriptor = descriptor;
+            this.signature = signature;
+            this.start = start;
+            this.end = end;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.dimdev.javaremapper;
+
+import java.util.*;
+
+/**
+ * Map views of member tables, keyed by the space-separated strings Mapping used to store its members by,
+ * so that code using its maps keeps working. Lookups through these views build and split keys, so
+ * Mapping's own methods don't use them.
+ */
+final class MemberMaps {
+    private MemberMaps() {}
+
+    /** Gets a view of a table keyed by "class name descriptor" **/
+    static Map<String, String> of(MemberTable<String> table) {
+        return new AbstractMap<String, String>() {
+            @Override
+            public String get(Object key) {
+                String[] parts = split(key, 3);
+                return parts == null ? null : table.get(parts[0], parts[1], parts[2]);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public String put(String key, String value) {
+                String[] parts = checkedSplit(key, 3);
+                return table.put(parts[0], parts[1], parts[2], value);
+            }
+
+            @Override
+            public String remove(Object key) {
+                String[] parts = split(key, 3);
+                return parts == null ? null : table.remove(parts[0], parts[1], parts[2]);
+            }
+
+            @Override
+            public int size() {
+                return table.size();
+            }
+
+            @Override
+            public Set<Entry<String, String>> entrySet() {
+                return new AbstractSet<Entry<String, String>>() {
+                    @Override
+                    public Iterator<Entry<String, String>> iterator() {
+                        Iterator<MemberTable.Entry<String>> iterator = table.iterator();
+                        return new Iterator<Entry<String, String>>() {
+                            @Override
+                            public boolean hasNext() {
+                                return iterator.hasNext();
+                            }
+
+                            @Override
+                            public Entry<String, String> next() {
+                                MemberTable.Entry<String> entry = iterator.next();
+                                String key = entry.className + " " + entry.memberName + " " + entry.descriptor;
+                                return new SimpleEntry<String, String>(key, entry.getValue()) {
+                                    @Override
+                                    public String setValue(String value) {
+                                        entry.setValue(value);
+                                        return super.setValue(value);
+                                    }
+                                };
+                            }
+
+                            @Override
+                            public void remove() {
+                                iterator.remove();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return table.size();
+                    }
+                };
+            }
+        };
+    }
+
+    /** Gets a view of a table of names by index, keyed by "class method descriptor index" **/
+    static Map<String, String> ofIndexed(MemberTable<String[]> table) {
+        return new AbstractMap<String, String>() {
+            @Override
+            public String get(Object key) {
+                String[] parts = split(key, 4);
+                if (parts == null) return null;
+                String[] names = table.get(parts[0], parts[1], parts[2]);
+                int index = parseIndex(parts[3]);
+                return names == null || index < 0 || index >= names.length ? null : names[index];
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public String put(String key, String value) {
+                String[] parts = checkedSplit(key, 4);
+                int index = parseIndex(parts[3]);
+                if (index < 0) throw new IllegalArgumentException("Invalid index in key " + key);
+                String previous = get(key);
+                Mapping.addIndexed(table, parts[0], parts[1], parts[2], index, value);
+                return previous;
+            }
+
+            @Override
+            public String remove(Object key) {
+                String previous = get(key);
+                if (previous != null) {
+                    String[] parts = split(key, 4);
+                    table.get(parts[0], parts[1], parts[2])[parseIndex(parts[3])] = null;
+                }
+                return previous;
+            }
+
+            @Override
+            public Set<Entry<String, String>> entrySet() {
+                return new AbstractSet<Entry<String, String>>() {
+                    @Override
+                    public Iterator<Entry<String, String>> iterator() {
+                        Iterator<MemberTable.Entry<String[]>> iterator = table.iterator();
+                        return new Iterator<Entry<String, String>>() {
+                            private MemberTable.Entry<String[]> entry;
+                            private int nextIndex = 0;
+                            private int currentIndex = -1;
+                            private MemberTable.Entry<String[]> currentEntry;
+
+                            @Override
+                            public boolean hasNext() {
+                                // Skip to the next name that's set
+                                while (true) {
+                                    if (entry != null) {
+                                        String[] names = entry.getValue();
+                                        while (nextIndex < names.length && names[nextIndex] == null) nextIndex++;
+                                        if (nextIndex < names.length) return true;
+                                    }
+                                    if (!iterator.hasNext()) return false;
+                                    entry = iterator.next();
+                                    nextIndex = 0;
+                                }
+                            }
+
+                            @Override
+                            public Entry<String, String> next() {
+                                if (!hasNext()) throw new NoSuchElementException();
+                                MemberTable.Entry<String[]> current = entry;
+                                int index = nextIndex++;
+                                currentEntry = current;
+                                currentIndex = index;
+                                String key = current.className + " " + current.memberName + " " + current.descriptor + " " + index;
+                                return new SimpleEntry<String, String>(key, current.getValue()[index]) {
+                                    @Override
+                                    public String setValue(String value) {
+                                        current.getValue()[index] = value;
+                                        return super.setValue(value);
+                                    }
+                                };
+                            }
+
+                            @Override
+                            public void remove() {
+                                if (currentEntry == null) throw new IllegalStateException();
+                                currentEntry.getValue()[currentIndex] = null;
+                                currentEntry = null;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        int size = 0;
+                        for (Iterator<Entry<String, String>> iterator = iterator(); iterator.hasNext(); iterator.next()) size++;
+                        return size;
+                    }
+                };
+            }
+        };
+    }
+
+    private static String[] split(Object key, int count) {
+        if (!(key instanceof String)) return null;
+        String[] parts = ((String) key).split(" ");
+        return parts.length == count ? parts : null;
+    }
+
+    private static String[] checkedSplit(String key, int count) {
+        String[] parts = split(key, count);
+        if (parts == null) throw new IllegalArgumentException("Expected " + count + " space-separated names in key " + key);
+        return parts;
+    }
+
+    private static int parseIndex(String index) {
+        try {
+            return Integer.parseInt(index);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
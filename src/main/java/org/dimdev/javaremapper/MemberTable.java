@@ -0,0 +1,135 @@
+package org.dimdev.javaremapper;
+
+import java.util.*;
+
+/**
+ * Values keyed by class name, member name and descriptor, which can be looked up without building a key.
+ * Entries are iterated in the order they were first added.
+ */
+public class MemberTable<V> {
+    private final Map<String, Map<String, Map<String, Entry<V>>>> table = new HashMap<>();
+    private Entry<V> first;
+    private Entry<V> last;
+    private int size = 0;
+
+    public V get(String className, String memberName, String descriptor) {
+        Entry<V> entry = getEntry(className, memberName, descriptor);
+        return entry == null ? null : entry.value;
+    }
+
+    /** Returns whether any member of a class has the given name **/
+    public boolean contains(String className, String memberName) {
+        Map<String, Map<String, Entry<V>>> members = table.get(className);
+        return members != null && members.containsKey(memberName);
+    }
+
+    private Entry<V> getEntry(String className, String memberName, String descriptor) {
+        Map<String, Map<String, Entry<V>>> members = table.get(className);
+        if (members == null) return null;
+
+        Map<String, Entry<V>> descriptors = members.get(memberName);
+        return descriptors == null ? null : descriptors.get(descriptor);
+    }
+
+    public V put(String className, String memberName, String descriptor, V value) {
+        Map<String, Entry<V>> descriptors = table.computeIfAbsent(className, k -> new HashMap<>())
+                                                 .computeIfAbsent(memberName, k -> new HashMap<>());
+        Entry<V> entry = descriptors.get(descriptor);
+        if (entry != null) {
+            // Replaced values keep their position, like a LinkedHashMap
+            V previous = entry.value;
+            entry.value = value;
+            return previous;
+        }
+
+        entry = new Entry<>(className, memberName, descriptor, value);
+        descriptors.put(descriptor, entry);
+        entry.previous = last;
+        if (last == null) first = entry; else last.next = entry;
+        last = entry;
+        size++;
+        return null;
+    }
+
+    public V remove(String className, String memberName, String descriptor) {
+        Map<String, Map<String, Entry<V>>> members = table.get(className);
+        if (members == null) return null;
+        Map<String, Entry<V>> descriptors = members.get(memberName);
+        if (descriptors == null) return null;
+        Entry<V> entry = descriptors.remove(descriptor);
+        if (entry == null) return null;
+
+        if (descriptors.isEmpty()) members.remove(memberName);
+        if (members.isEmpty()) table.remove(className);
+        if (entry.previous == null) first = entry.next; else entry.previous.next = entry.next;
+        if (entry.next == null) last = entry.previous; else entry.next.previous = entry.previous;
+        size--;
+        return entry.value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(EntryConsumer<V> consumer) {
+        for (Entry<V> entry = first; entry != null; entry = entry.next) {
+            consumer.accept(entry.className, entry.memberName, entry.descriptor, entry.value);
+        }
+    }
+
+    /** Iterates over the entries, in order. Removing entries through the iterator removes them from the table. **/
+    public Iterator<Entry<V>> iterator() {
+        return new Iterator<Entry<V>>() {
+            private Entry<V> next = first;
+            private Entry<V> current;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Entry<V> next() {
+                if (next == null) throw new NoSuchElementException();
+                current = next;
+                next = next.next;
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null) throw new IllegalStateException();
+                MemberTable.this.remove(current.className, current.memberName, current.descriptor);
+                current = null;
+            }
+        };
+    }
+
+    public interface EntryConsumer<V> {
+        void accept(String className, String memberName, String descriptor, V value);
+    }
+
+    public static class Entry<V> {
+        public final String className;
+        public final String memberName;
+        public final String descriptor;
+        private V value;
+        private Entry<V> previous;
+        private Entry<V> next;
+
+        private Entry(String className, String memberName, String descriptor, V value) {
+            this.className = className;
+            this.memberName = memberName;
+            this.descriptor = descriptor;
+            this.value = value;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public void setValue(V value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.dimdev.javaremapper;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads the entries of an exploded directory or of a jar, on any filesystem (such as a jar inside a
+ * zip filesystem), one at a time. Directory entries are read in the order of their names.
+ */
+public class PathEntries implements Iterator<Map.Entry<String, byte[]>>, Closeable {
+    private final Iterator<Path> files;
+    private final Path directory;
+    private final ZipInputStream zipInputStream;
+    private Map.Entry<String, byte[]> next;
+
+    public PathEntries(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> stream = Files.walk(path)) {
+                files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList()).iterator();
+            }
+            directory = path;
+            zipInputStream = null;
+        } else {
+            files = null;
+            directory = null;
+            zipInputStream = new ZipInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        }
+        next = read();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, byte[]> next() {
+        if (next == null) throw new NoSuchElementException();
+        Map.Entry<String, byte[]> result = next;
+        try {
+            next = read();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    private Map.Entry<String, byte[]> read() throws IOException {
+        if (files != null) {
+            if (!files.hasNext()) return null;
+            Path file = files.next();
+            String name = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+            return new AbstractMap.SimpleImmutableEntry<>(name, Files.readAllBytes(file));
+        }
+
+        ZipEntry entry = zipInputStream.getNextEntry();
+        if (entry == null) return null;
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 4096);
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = zipInputStream.read(buffer)) != -1) data.write(buffer, 0, length);
+        return new AbstractMap.SimpleImmutableEntry<>(entry.getName(), data.toByteArray());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (zipInputStream != null) zipInputStream.close();
+    }
+}
@@ -0,0 +1,80 @@
+package org.dimdev.javaremapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Set;
+
+/**
+ * A mapping that can be looked up, but not necessarily changed. Mapping keeps its entries in memory, and
+ * BinaryMapping reads them from a binary mapping file.
+ */
+public interface ReadableMapping {
+    /** Gets the new name of a class, or null if it isn't renamed **/
+    String getClass(String className);
+
+    String getField(String className, String fieldName, String fieldDescriptor);
+
+    String getMethod(String className, String methodName, String methodDescriptor);
+
+    String getParameter(String className, String methodName, String methodDescriptor, int index);
+
+    String getLocal(String className, String methodName, String methodDescriptor, int index);
+
+    default String mapClass(String className) {
+        String newName = getClass(className);
+        return newName == null ? className : newName;
+    }
+
+    default String mapField(String className, String fieldName, String fieldDescriptor) {
+        String newName = getField(className, fieldName, fieldDescriptor);
+        return newName == null ? fieldName : newName;
+    }
+
+    default String mapMethod(String className, String methodName, String methodDescriptor) {
+        String newName = getMethod(className, methodName, methodDescriptor);
+        return newName == null ? methodName : newName;
+    }
+
+    default String mapParameter(String className, String methodName, String methodDescriptor, int index) {
+        String newName = getParameter(className, methodName, methodDescriptor, index);
+        return newName == null ? "par" + index : newName;
+    }
+
+    default String mapLocal(String className, String methodName, String methodDescriptor, int index) {
+        String newName = getLocal(className, methodName, methodDescriptor, index);
+        return newName == null ? "var" + index : newName;
+    }
+
+    /**
+     * Gets the names this mapping can rename: the original names of mapped classes, fields and methods, and
+     * the classes that have mapped parameters or locals. Returns null if any name may be renamed.
+     */
+    Set<String> getMappedNames();
+
+    /** Gets a mapping with all entries in memory **/
+    Mapping toMapping();
+
+    /** Gets a hash of the mapping's contents, or null if it can't be identified by its contents **/
+    byte[] getFingerprint();
+
+    /** Creates a mapping that maps names the way this mapping followed by the next mapping does **/
+    default Mapping compose(ReadableMapping next) {
+        return toMapping().compose(next);
+    }
+
+    /** Creates a mapping that maps the new names of this mapping back to the original names **/
+    default Mapping invert() {
+        return toMapping().invert();
+    }
+
+    /** Writes the mappings in JAM format (https://github.com/caseif/JAM) **/
+    default void writeToJAM(Writer writer) {
+        toMapping().writeToJAM(writer);
+    }
+
+    /** Writes the mappings in the binary format read by BinaryMapping **/
+    default void writeToBinary(OutputStream outputStream) throws IOException {
+        toMapping().writeToBinary(outputStream);
+    }
+}
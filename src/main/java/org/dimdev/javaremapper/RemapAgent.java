@@ -0,0 +1,61 @@
+package org.dimdev.javaremapper;
+
+import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A Java agent that remaps classes as they're loaded, using the mapping files given as the agent's
+ * arguments (separated like a classpath): -javaagent:JavaRemapper.jar=mappings.jam
+ *
+ * Class names are fixed once the JVM asks for a class, so the agent can only be used with mappings that
+ * don't rename classes, such as mappings that only rename members. Classes referring to no mapped names
+ * are left as they are. Use RemappingClassLoader for mappings that rename classes.
+ *
+ * The inheritance of the classes is read from the loader that defines them, so each loader gets its own
+ * remapper.
+ */
+public class RemapAgent implements ClassFileTransformer {
+    private final JavaRemapper javaRemapper;
+    private final Map<ClassLoader, SimpleRemapper> remappers = Collections.synchronizedMap(new WeakHashMap<>());
+    private final ConstantPoolFilter filter;
+
+    public RemapAgent(ReadableMapping mapping) {
+        javaRemapper = new JavaRemapper(mapping);
+        filter = ConstantPoolFilter.create(mapping);
+    }
+
+    public static void premain(String agentArgs, Instrumentation instrumentation) throws Exception {
+        if (agentArgs == null || agentArgs.isEmpty()) {
+            throw new IllegalArgumentException("Usage: -javaagent:JavaRemapper.jar=<mappings>[" + File.pathSeparator + "<mappings>...]");
+        }
+        instrumentation.addTransformer(new RemapAgent(CommandLine.readMappings(agentArgs.split(File.pathSeparator))));
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // Leave the JDK and the remapper itself alone
+        if (loader == null || className == null) return null;
+        if (className.startsWith("org/dimdev/javaremapper/") || className.startsWith("org/objectweb/asm/")) return null;
+        if (filter != null && !filter.mayBeRemapped(classfileBuffer)) return null;
+
+        if (javaRemapper.mapping.getClass(className) != null) {
+            System.err.println("Can't rename " + className + " while it's being loaded");
+            return null;
+        }
+
+        // The JVM ignores exceptions thrown by transformers, so they're printed here
+        try {
+            SimpleRemapper remapper = remappers.computeIfAbsent(loader, key -> new SimpleRemapper(javaRemapper.mapping, new InheritanceMapper(key), javaRemapper.stats, javaRemapper.listener));
+            return javaRemapper.remapClass(className, classfileBuffer, remapper);
+        } catch (Throwable t) {
+            System.err.println("Failed to remap " + className);
+            t.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.dimdev.javaremapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * An on-disk cache of remapped classes, keyed by a hash of the class bytes and of everything else the
+ * remapped bytes depend on. Least recently used entries are removed once the cache grows past its
+ * maximum size. Can be used from several threads at once.
+ */
+public class RemapCache {
+    private final Path directory;
+    private final long maxSize;
+    private final AtomicLong size = new AtomicLong();
+
+    public RemapCache(File directory, long maxSize) throws IOException {
+        this.directory = directory.toPath();
+        this.maxSize = maxSize;
+        Files.createDirectories(this.directory);
+
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.filter(Files::isRegularFile).forEach(file -> size.addAndGet(file.toFile().length()));
+        }
+    }
+
+    /** Computes the cache key of a class, given the fingerprint of the mapping and inheritance it's remapped with **/
+    public static byte[] getKey(byte[] fingerprint, byte[] classData) {
+        MessageDigest digest = newDigest();
+        digest.update(fingerprint);
+        digest.update(classData);
+        return digest.digest();
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public byte[] get(byte[] key) throws IOException {
+        Path file = getFile(key);
+        try {
+            byte[] data = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis())); // Mark as recently used
+            return data;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    public void put(byte[] key, byte[] data) throws IOException {
+        Path file = getFile(key);
+        Files.createDirectories(file.getParent());
+
+        // Write to a temporary file first, so that other runs never see a partially written entry
+        Path temporaryFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temporaryFile, data);
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            size.addAndGet(data.length);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /** Deletes the least recently used entries until the cache is smaller than its maximum size **/
+    public void evict() throws IOException {
+        if (size.get() <= maxSize) return;
+
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(directory)) {
+            stream.filter(Files::isRegularFile).forEach(files::add);
+        }
+        files.sort(Comparator.comparingLong(file -> file.toFile().lastModified()));
+
+        long currentSize = 0;
+        for (Path file : files) currentSize += file.toFile().length();
+        for (Path file : files) {
+            if (currentSize <= maxSize) break;
+            long fileSize = file.toFile().length();
+            if (Files.deleteIfExists(file)) currentSize -= fileSize;
+        }
+        size.set(currentSize);
+    }
+
+    private Path getFile(byte[] key) {
+        String name = toHex(key);
+        return directory.resolve(name.substring(0, 2)).resolve(name.substring(2));
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,16 @@
+package org.dimdev.javaremapper;
+
+/** Gets notified of the progress of remapping, and of problems that don't stop it **/
+public interface RemapListener {
+    RemapListener NONE = new RemapListener() {};
+
+    /**
+     * Called once per entry of the jar, after it's written to the output, or to the outputs of all targets when a
+     * jar is remapped with several mappings. Calls come from a writer thread, but never at the same time.
+     * The total is -1 if it isn't known.
+     */
+    default void entryWritten(String name, int written, int total) {}
+
+    /** Called for problems such as inheritance conflicts and removed LVTs, from any thread **/
+    default void warning(String message) {}
+}
@@ -0,0 +1,450 @@
+package org.dimdev.javaremapper;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs remap jobs sent by clients over a loopback socket, keeping the mappings and the inheritance of
+ * library and JDK classes loaded between jobs, along with the remap caches and the resolved member names of the
+ * jars remapped with each mapping. Up to the server's number of threads jobs run in parallel, each remapping
+ * its jar with that many threads, or the number given with the job's --threads.
+ *
+ * Jobs read and overwrite files as the user running the server, so only clients that can read the
+ * server's token file, which only that user can read, may send them. A job is sent as the token and the
+ * client's working directory followed by the arguments of the remap subcommand, as a count followed by
+ * modified UTF-8 strings. The server replies with "OK" or "ERROR" and a message.
+ * Jobs accept the options of the remap subcommand, except for --verbose, since the server's output isn't
+ * the client's, and --snapshots, which are chosen when the server starts. "--stats -" adds the stats to
+ * the reply.
+ */
+public class RemapServer implements Closeable {
+    public static final int DEFAULT_PORT = 25560;
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toNanos(10); // Mappings and libraries no job used for this long are dropped
+    private static final Set<String> JOB_OPTIONS = new HashSet<>(Arrays.asList(
+            "libraries", "skip-unmapped", "compression", "max-in-flight", "cache", "cache-size", "threads", "stats",
+            "port" // The client's
+    ));
+
+    private final ServerSocket serverSocket;
+    private final File tokenFile;
+    private final byte[] token;
+    private final int threads;
+    private final File snapshotDirectory; // Snapshots of the JDK and libraries to use, or null
+    private final ExecutorService jobs;
+    private final LoadedCache<Mappings> mappings = new LoadedCache<>();
+    private final LoadedCache<Libraries> libraries = new LoadedCache<>();
+
+    public RemapServer(int port, int threads, File snapshotDirectory) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        tokenFile = getTokenFile(port);
+        try {
+            token = writeToken(tokenFile);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        tokenFile.deleteOnExit(); // Servers are usually stopped with Ctrl+C
+        this.threads = threads;
+        jobs = Executors.newFixedThreadPool(threads);
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    /** Accepts jobs until the server is closed **/
+    public void run() throws IOException {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) return;
+                throw e;
+            }
+            jobs.submit(() -> handle(socket));
+        }
+    }
+
+    /** Gets the file the server listening on a port keeps its token in **/
+    public static File getTokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".javaremapper-" + port + ".token");
+    }
+
+    private static byte[] writeToken(File tokenFile) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        byte[] token = RemapCache.toHex(random).getBytes(StandardCharsets.UTF_8);
+
+        // Make the file private before the token is written to it
+        Path path = tokenFile.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(path);
+            if (!tokenFile.setReadable(false, false) || !tokenFile.setReadable(true, true) ||
+                !tokenFile.setWritable(false, false) || !tokenFile.setWritable(true, true)) {
+                throw new IOException("Failed to make " + tokenFile + " private");
+            }
+        }
+        Files.write(path, token);
+        return token;
+    }
+
+    /** Sends a job to a server, returning its reply **/
+    public static String sendJob(int port, String[] args) throws IOException {
+        File tokenFile = getTokenFile(port);
+        if (!tokenFile.exists()) throw new IOException("No server is running on port " + port + ", " + tokenFile + " doesn't exist");
+        String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8);
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            out.writeUTF(token);
+            out.writeUTF(new File("").getAbsolutePath());
+            out.writeInt(args.length);
+            for (String arg : args) out.writeUTF(arg);
+            out.flush();
+
+            String status = in.readUTF();
+            String message = in.readUTF();
+            if (!status.equals("OK")) throw new IOException(message);
+            return message;
+        }
+    }
+
+    private void handle(Socket socket) {
+        // Closing the socket closes its streams
+        try (Socket client = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+            if (!MessageDigest.isEqual(in.readUTF().getBytes(StandardCharsets.UTF_8), token)) {
+                out.writeUTF("ERROR");
+                out.writeUTF("Invalid token");
+                out.flush();
+                return;
+            }
+            File workingDirectory = new File(in.readUTF());
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) args[i] = in.readUTF();
+
+            String status;
+            String message;
+            try {
+                message = runJob(workingDirectory, args);
+                status = "OK";
+            } catch (Exception e) {
+                message = e.toString();
+                status = "ERROR";
+            }
+            System.out.println(status + ": " + String.join(" ", args) + " - " + message);
+
+            out.writeUTF(status);
+            out.writeUTF(message);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to handle job: " + e);
+        }
+    }
+
+    private String runJob(File workingDirectory, String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        args = CommandLine.parseOptions(args, options);
+        if (args.length < 4 || !args[0].equalsIgnoreCase("remap")) throw new IllegalArgumentException("Usage: remap <jar> <target> <mappings...> [options]");
+        for (String option : options.keySet()) {
+            if (!JOB_OPTIONS.contains(option)) throw new IllegalArgumentException("Option --" + option + " isn't supported by the server");
+        }
+        int jobThreads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(threads)));
+
+        long start = System.nanoTime();
+        File inputFile = resolve(workingDirectory, args[1]);
+        File remapTarget = resolve(workingDirectory, args[2]);
+        if (remapTarget.exists()) remapTarget.delete();
+
+        List<File> mappingFiles = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) mappingFiles.add(resolve(workingDirectory, args[i]));
+        List<File> libraryFiles = new ArrayList<>();
+        if (options.containsKey("libraries")) {
+            for (String path : options.get("libraries").split(File.pathSeparator)) {
+                if (!path.isEmpty()) libraryFiles.add(resolve(workingDirectory, path));
+            }
+        }
+
+        try (Loaded<Mappings> mappings = this.mappings.acquire(mappingFiles, () -> new Mappings(readMappings(mappingFiles)));
+             Loaded<Libraries> libraries = this.libraries.acquire(libraryFiles, () -> new Libraries(libraryFiles))) {
+            long mappingsLoaded = System.nanoTime();
+
+            // Only the jar's own classes are scanned, the rest is shared with other jobs
+            SimpleRemapper sharedRemapper = mappings.get().getRemapper(inputFile, libraries.get(), jobThreads);
+            long inheritanceLoaded = System.nanoTime();
+
+            JavaRemapper remapper = new JavaRemapper(mappings.get().mapping, jobThreads);
+            remapper.sharedRemapper = sharedRemapper;
+            // Jobs with the same mappings and cache directory share the cache
+            CommandLine.configureRemapper(remapper, options, (directory, maxSize) ->
+                    mappings.get().getRemapCache(resolve(workingDirectory, directory.getPath()), maxSize));
+            remapper.remapJar(inputFile, remapTarget, sharedRemapper.getInheritanceProvider());
+            long end = System.nanoTime();
+
+            String message = "Remapped " + inputFile.getName() + " in " + (end - start) / 1000000 + " ms (mappings " +
+                             (mappingsLoaded - start) / 1000000 + " ms, inheritance " + (inheritanceLoaded - mappingsLoaded) / 1000000 +
+                             " ms, remap " + (end - inheritanceLoaded) / 1000000 + " ms)";
+
+            String statsFile = options.get("stats");
+            if (statsFile == null) return message;
+            if (statsFile.equals("-")) return message + "\n" + remapper.stats.toJSON();
+            try (Writer writer = new FileWriter(resolve(workingDirectory, statsFile))) {
+                writer.write(remapper.stats.toJSON());
+            }
+            return message;
+        }
+    }
+
+    private static ReadableMapping readMappings(List<File> mappingFiles) throws IOException {
+        String[] paths = new String[mappingFiles.size()];
+        for (int i = 0; i < paths.length; i++) paths[i] = mappingFiles.get(i).getPath();
+        return CommandLine.readMappings(paths);
+    }
+
+    private static File resolve(File workingDirectory, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(workingDirectory, path);
+    }
+
+    private static String getKey(List<File> files) {
+        StringBuilder key = new StringBuilder();
+        for (File file : files) key.append(file.getAbsolutePath()).append(File.pathSeparatorChar);
+        return key.toString();
+    }
+
+    private static String getStamp(List<File> files) {
+        StringBuilder stamp = new StringBuilder();
+        for (File file : files) stamp.append(file.lastModified()).append(' ').append(file.length()).append(' ');
+        return stamp.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        jobs.shutdown();
+        Files.deleteIfExists(tokenFile.toPath());
+        mappings.close();
+        libraries.close();
+    }
+
+    /**
+     * A mapping, and what jobs using it keep between them: the remap caches they used, and a remapper per jar
+     * with its inheritance and the member names resolved so far
+     */
+    private static class Mappings {
+        public final ReadableMapping mapping;
+        private final Map<String, RemapCache> remapCaches = new HashMap<>();
+        private final Map<Libraries, Map<File, JarRemapper>> remappers = new WeakHashMap<>(); // By the libraries they use
+
+        public Mappings(ReadableMapping mapping) {
+            this.mapping = mapping;
+        }
+
+        public synchronized RemapCache getRemapCache(File directory, long maxSize) throws IOException {
+            String key = directory.getAbsolutePath() + File.pathSeparator + maxSize;
+            RemapCache remapCache = remapCaches.get(key);
+            if (remapCache == null) {
+                remapCache = new RemapCache(directory, maxSize);
+                remapCaches.put(key, remapCache);
+            }
+            return remapCache;
+        }
+
+        /** Gets the remapper of a jar, scanning the jar's classes if it's new or has changed **/
+        public SimpleRemapper getRemapper(File jar, Libraries libraries, int threads) throws IOException {
+            String stamp = getStamp(Collections.singletonList(jar));
+            JarRemapper jarRemapper;
+            synchronized (this) {
+                jarRemapper = remappers.computeIfAbsent(libraries, k -> new HashMap<>()).get(jar);
+                if (jarRemapper == null || !jarRemapper.stamp.equals(stamp)) {
+                    InheritanceMapper libraryInheritance = libraries.inheritanceMapper; // Not the libraries, which are only weakly referenced
+                    jarRemapper = new JarRemapper(stamp, new FutureTask<>(() -> {
+                        InheritanceMapper inheritanceMapper = new InheritanceMapper(libraryInheritance);
+                        JavaRemapper.scanJar(jar, inheritanceMapper, threads, true);
+                        return new SimpleRemapper(mapping, inheritanceMapper);
+                    }));
+                    remappers.get(libraries).put(jar, jarRemapper);
+                }
+            }
+
+            // Jobs remapping the same jar wait for the first one to scan it
+            jarRemapper.remapper.run();
+            try {
+                return Futures.waitFor(jarRemapper.remapper);
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    remappers.get(libraries).remove(jar, jarRemapper);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static class JarRemapper {
+        public final String stamp;
+        public final FutureTask<SimpleRemapper> remapper;
+
+        public JarRemapper(String stamp, FutureTask<SimpleRemapper> remapper) {
+            this.stamp = stamp;
+            this.remapper = remapper;
+        }
+    }
+
+    /** The inheritance of a set of libraries, read from their snapshots, the libraries and the JDK's snapshot **/
+    private class Libraries implements Closeable {
+        public final ClasspathIndex classpath;
+        public final InheritanceMapper inheritanceMapper;
+
+        public Libraries(List<File> libraryFiles) throws IOException {
+            classpath = new ClasspathIndex(libraryFiles, threads);
+            inheritanceMapper = new InheritanceMapper(classpath);
+            if (snapshotDirectory != null) {
+                for (File library : libraryFiles) {
+                    if (!library.isFile()) continue;
+                    File snapshotFile = InheritanceSnapshot.getSnapshotFile(snapshotDirectory, library);
+                    if (snapshotFile.exists()) inheritanceMapper.addSnapshot(new InheritanceSnapshot(snapshotFile));
+                }
+                File jdkSnapshotFile = InheritanceSnapshot.getJdkSnapshotFile(snapshotDirectory);
+                if (jdkSnapshotFile.exists()) inheritanceMapper.addSnapshot(new InheritanceSnapshot(jdkSnapshotFile));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            classpath.close();
+        }
+    }
+
+    private interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    /**
+     * Values loaded from files, shared by the jobs using the same files. A value is loaded again once its
+     * files change, and dropped once no job has used it for IDLE_TIMEOUT. Closeable values are closed when
+     * they're dropped, or when the last job using them finishes.
+     */
+    private static class LoadedCache<T> {
+        private final Map<String, Loaded<T>> values = new HashMap<>();
+        private boolean closed = false;
+
+        /** Gets the value loaded from some files for a job, which must close it once it's done **/
+        public Loaded<T> acquire(List<File> files, Loader<T> loader) throws IOException {
+            String key = getKey(files);
+            String stamp = getStamp(files);
+            Loaded<T> loaded;
+            synchronized (this) {
+                if (closed) throw new IOException("Server closed");
+                dropIdle();
+
+                loaded = values.get(key);
+                if (loaded == null || !loaded.stamp.equals(stamp)) {
+                    Loaded<T> replaced = loaded;
+                    loaded = new Loaded<>(this, stamp, new FutureTask<>(loader::load));
+                    values.put(key, loaded);
+                    if (replaced != null) replaced.drop();
+                }
+                loaded.users++;
+            }
+
+            // Values are loaded outside of the lock, so that jobs using other files don't wait for them. Jobs
+            // that start at the same time run the same task, which loads the value once.
+            loaded.value.run();
+            try {
+                Futures.waitFor(loaded.value);
+            } catch (IOException | RuntimeException | Error e) {
+                synchronized (this) {
+                    values.remove(key, loaded);
+                }
+                loaded.close();
+                throw e;
+            }
+            return loaded;
+        }
+
+        private synchronized void release(Loaded<T> loaded) throws IOException {
+            loaded.users--;
+            loaded.lastUsed = System.nanoTime();
+            loaded.closeIfUnused();
+        }
+
+        private void dropIdle() throws IOException {
+            long now = System.nanoTime();
+            Iterator<Loaded<T>> iterator = values.values().iterator();
+            while (iterator.hasNext()) {
+                Loaded<T> loaded = iterator.next();
+                if (loaded.users == 0 && now - loaded.lastUsed > IDLE_TIMEOUT) {
+                    iterator.remove();
+                    loaded.drop();
+                }
+            }
+        }
+
+        /** Drops all values, the ones still used are closed when their jobs finish **/
+        public synchronized void close() throws IOException {
+            closed = true;
+            for (Loaded<T> loaded : values.values()) loaded.drop();
+            values.clear();
+        }
+    }
+
+    /** A value loaded for a job, closing it tells the cache the job is done with it **/
+    private static class Loaded<T> implements Closeable {
+        public final String stamp; // Modification times and sizes of the files it was loaded from
+        private final FutureTask<T> value;
+        private final LoadedCache<T> cache;
+        // Guarded by the cache
+        private int users = 0;
+        private long lastUsed = System.nanoTime();
+        private boolean dropped = false;
+
+        public Loaded(LoadedCache<T> cache, String stamp, FutureTask<T> value) {
+            this.cache = cache;
+            this.stamp = stamp;
+            this.value = value;
+        }
+
+        /** Gets the value, which has been loaded by the time the cache returns it **/
+        public T get() throws IOException {
+            return Futures.waitFor(value);
+        }
+
+        private void drop() throws IOException {
+            dropped = true;
+            closeIfUnused();
+        }
+
+        private void closeIfUnused() throws IOException {
+            // Jobs stay users while the value loads, so it's done loading once there are none
+            if (!dropped || users != 0) return;
+            T loadedValue;
+            try {
+                loadedValue = Futures.waitFor(value);
+            } catch (IOException | RuntimeException e) {
+                return; // Failed to load, so there's nothing to close
+            }
+            if (loadedValue instanceof Closeable) ((Closeable) loadedValue).close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            cache.release(this);
+        }
+    }
+}
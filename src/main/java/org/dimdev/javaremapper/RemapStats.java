@@ -0,0 +1,64 @@
+package org.dimdev.javaremapper;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and phase timings of remapping. Can be updated from several threads at once, so phase times
+ * are summed over all threads working on that phase.
+ */
+public class RemapStats {
+    public enum Phase { INDEX, READ, REMAP, WRITE }
+
+    private final LongAdder[] phaseTimes = new LongAdder[Phase.values().length];
+    public final LongAdder wallTime = new LongAdder();
+    public final LongAdder classes = new LongAdder();
+    public final LongAdder resources = new LongAdder();
+    public final LongAdder skippedClasses = new LongAdder(); // Copied without remapping by the constant pool filter
+    public final LongAdder bytesRead = new LongAdder();
+    public final LongAdder bytesWritten = new LongAdder();
+    public final LongAdder memberCacheHits = new LongAdder();
+    public final LongAdder memberCacheMisses = new LongAdder();
+    public final LongAdder remapCacheHits = new LongAdder();
+    public final LongAdder remapCacheMisses = new LongAdder();
+    public final LongAdder classMappingMisses = new LongAdder(); // Class lookups with no mapping, mostly JDK and library classes
+    public final LongAdder memberMappingMisses = new LongAdder(); // Members resolved without a mapping, each counted once per remapper
+    public final LongAdder inheritanceConflicts = new LongAdder();
+    public final LongAdder lvtRepairs = new LongAdder();
+
+    public RemapStats() {
+        for (int i = 0; i < phaseTimes.length; i++) phaseTimes[i] = new LongAdder();
+    }
+
+    public void addTime(Phase phase, long nanos) {
+        phaseTimes[phase.ordinal()].add(nanos);
+    }
+
+    public long getTime(Phase phase) {
+        return phaseTimes[phase.ordinal()].sum();
+    }
+
+    /** Writes the stats as a JSON object, with times in milliseconds **/
+    public String toJSON() {
+        StringBuilder json = new StringBuilder("{\n  \"phases\": {");
+        for (Phase phase : Phase.values()) {
+            if (phase.ordinal() != 0) json.append(',');
+            json.append("\n    \"").append(phase.name().toLowerCase()).append("\": ").append(getTime(phase) / 1000000);
+        }
+        json.append("\n  },\n");
+        json.append("  \"wall\": ").append(wallTime.sum() / 1000000).append(",\n");
+        json.append("  \"classes\": ").append(classes.sum()).append(",\n");
+        json.append("  \"resources\": ").append(resources.sum()).append(",\n");
+        json.append("  \"skippedClasses\": ").append(skippedClasses.sum()).append(",\n");
+        json.append("  \"bytesRead\": ").append(bytesRead.sum()).append(",\n");
+        json.append("  \"bytesWritten\": ").append(bytesWritten.sum()).append(",\n");
+        json.append("  \"memberCacheHits\": ").append(memberCacheHits.sum()).append(",\n");
+        json.append("  \"memberCacheMisses\": ").append(memberCacheMisses.sum()).append(",\n");
+        json.append("  \"remapCacheHits\": ").append(remapCacheHits.sum()).append(",\n");
+        json.append("  \"remapCacheMisses\": ").append(remapCacheMisses.sum()).append(",\n");
+        json.append("  \"classMappingMisses\": ").append(classMappingMisses.sum()).append(",\n");
+        json.append("  \"memberMappingMisses\": ").append(memberMappingMisses.sum()).append(",\n");
+        json.append("  \"inheritanceConflicts\": ").append(inheritanceConflicts.sum()).append(",\n");
+        json.append("  \"lvtRepairs\": ").append(lvtRepairs.sum()).append("\n");
+        return json.append("}\n").toString();
+    }
+}
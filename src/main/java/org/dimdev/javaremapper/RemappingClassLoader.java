@@ -0,0 +1,189 @@
+package org.dimdev.javaremapper;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.SecureClassLoader;
+import java.security.cert.Certificate;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Loads the classes of jars by their new names, remapping each class when it's first loaded rather than
+ * remapping the whole jar in advance. The inheritance of the jars' classes is loaded lazily as well. Remapped
+ * classes are kept in a cache bounded by their total size, so that their bytes can also be read with
+ * getResourceAsStream. Other resources are loaded from the jars unchanged. Like URLClassLoader, classes get the
+ * code source of the jar they're in, and packages are defined from the jar's manifest.
+ *
+ * The jars must not be on the parent's classpath, or classes that the mapping doesn't rename would be
+ * loaded from there without remapping them.
+ */
+public class RemappingClassLoader extends SecureClassLoader implements Closeable {
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final ClasspathIndex classpath;
+    private final URLClassLoader resourceLoader;
+    private final JavaRemapper javaRemapper;
+    private final SimpleRemapper remapper;
+    private final Map<String, String> originalNames = new HashMap<>(); // Original class names by new name
+    private final Map<File, CodeSource> codeSources = new HashMap<>();
+    private final Map<File, Manifest> manifests = new HashMap<>(); // Of the jars that have one
+    private final long maxCacheSize;
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true); // Guarded by itself
+    private long cacheSize = 0;
+
+    public RemappingClassLoader(ClassLoader parent, List<File> jars, ReadableMapping mapping, long maxCacheSize) throws IOException {
+        super(parent);
+        classpath = new ClasspathIndex(jars, 1);
+        URL[] urls = new URL[jars.size()];
+        for (int i = 0; i < urls.length; i++) {
+            File jar = jars.get(i);
+            urls[i] = jar.toURI().toURL();
+            codeSources.put(jar, new CodeSource(urls[i], (Certificate[]) null)); // Remapped classes aren't signed
+            if (jar.isFile()) {
+                try (JarFile jarFile = new JarFile(jar)) {
+                    Manifest manifest = jarFile.getManifest();
+                    if (manifest != null) manifests.put(jar, manifest);
+                }
+            }
+        }
+        resourceLoader = new URLClassLoader(urls, null);
+
+        javaRemapper = new JavaRemapper(mapping);
+        remapper = new SimpleRemapper(mapping, new InheritanceMapper(classpath), javaRemapper.stats, javaRemapper.listener);
+
+        // The original name of a renamed class is one of the names the mapping renames
+        Set<String> mappedNames = mapping.getMappedNames();
+        if (mappedNames == null) throw new IllegalArgumentException("The classes the mapping renames must be known in advance");
+        for (String name : mappedNames) {
+            String newName = mapping.getClass(name);
+            if (newName != null) originalNames.put(newName, name);
+        }
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    /** Gets the counters and times of the classes remapped so far **/
+    public RemapStats getStats() {
+        return javaRemapper.stats;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        String internalName = name.replace('.', '/');
+        byte[] data;
+        try {
+            data = getRemappedClass(internalName);
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+
+        if (data == null) throw new ClassNotFoundException(name);
+        File library = classpath.getLibrary(getOriginalName(internalName));
+        definePackage(name, library);
+        return defineClass(name, data, 0, data.length, codeSources.get(library));
+    }
+
+    /** Defines the package of a class if it isn't defined yet, with the attributes URLClassLoader would give it **/
+    private void definePackage(String className, File library) {
+        int lastDot = className.lastIndexOf('.');
+        if (lastDot < 0 || getPackage(className.substring(0, lastDot)) != null) return;
+        String packageName = className.substring(0, lastDot);
+
+        Manifest manifest = manifests.get(library);
+        Attributes entryAttributes = manifest == null ? null : manifest.getAttributes(packageName.replace('.', '/') + "/");
+        Attributes mainAttributes = manifest == null ? null : manifest.getMainAttributes();
+        boolean sealed = "true".equalsIgnoreCase(getAttribute(Attributes.Name.SEALED, entryAttributes, mainAttributes));
+        try {
+            definePackage(packageName,
+                    getAttribute(Attributes.Name.SPECIFICATION_TITLE, entryAttributes, mainAttributes),
+                    getAttribute(Attributes.Name.SPECIFICATION_VERSION, entryAttributes, mainAttributes),
+                    getAttribute(Attributes.Name.SPECIFICATION_VENDOR, entryAttributes, mainAttributes),
+                    getAttribute(Attributes.Name.IMPLEMENTATION_TITLE, entryAttributes, mainAttributes),
+                    getAttribute(Attributes.Name.IMPLEMENTATION_VERSION, entryAttributes, mainAttributes),
+                    getAttribute(Attributes.Name.IMPLEMENTATION_VENDOR, entryAttributes, mainAttributes),
+                    sealed ? codeSources.get(library).getLocation() : null);
+        } catch (IllegalArgumentException e) {
+            // Defined by another thread in the meantime
+        }
+    }
+
+    /** Gets an attribute of a package's manifest entry, or of the main section if the entry doesn't have it **/
+    private static String getAttribute(Attributes.Name name, Attributes entryAttributes, Attributes mainAttributes) {
+        String value = entryAttributes == null ? null : entryAttributes.getValue(name);
+        return value != null || mainAttributes == null ? value : mainAttributes.getValue(name);
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        if (name.endsWith(".class")) {
+            try {
+                byte[] data = getRemappedClass(name.substring(0, name.length() - 6));
+                if (data != null) return new ByteArrayInputStream(data);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return super.getResourceAsStream(name);
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        // The original classes can't be loaded as resources, they're only used to remap them
+        return name.endsWith(".class") ? null : resourceLoader.findResource(name);
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) throws IOException {
+        return name.endsWith(".class") ? Collections.emptyEnumeration() : resourceLoader.findResources(name);
+    }
+
+    /** Gets the remapped bytes of a class by its new name, or null if the jars don't contain it **/
+    private byte[] getRemappedClass(String name) throws IOException {
+        synchronized (cache) {
+            byte[] cached = cache.get(name);
+            if (cached != null) return cached;
+        }
+
+        String originalName = getOriginalName(name);
+        if (originalName == null) return null;
+
+        byte[] data = classpath.getClassData(originalName);
+        if (data == null) return null;
+
+        long start = System.nanoTime();
+        byte[] remappedData = javaRemapper.remapClass(originalName, data, remapper);
+        javaRemapper.stats.addTime(RemapStats.Phase.REMAP, System.nanoTime() - start);
+        javaRemapper.stats.classes.increment();
+
+        // Remove the least recently used classes once the cache is full
+        synchronized (cache) {
+            byte[] previous = cache.put(name, remappedData);
+            cacheSize += remappedData.length - (previous == null ? 0 : previous.length);
+            Iterator<byte[]> iterator = cache.values().iterator();
+            while (cacheSize > maxCacheSize && iterator.hasNext()) {
+                cacheSize -= iterator.next().length;
+                iterator.remove();
+            }
+        }
+        return remappedData;
+    }
+
+    /** Gets the name a class has in the jars by its new name, or null if it has another new name **/
+    private String getOriginalName(String name) {
+        // Classes the mapping renames can only be loaded by their new name
+        String originalName = originalNames.get(name);
+        if (originalName != null) return originalName;
+        return javaRemapper.mapping.getClass(name) != null ? null : name;
+    }
+
+    @Override
+    public void close() throws IOException {
+        resourceLoader.close();
+        classpath.close();
+    }
+}
@@ -2,22 +2,102 @@ package org.dimdev.javaremapper;
 
 import org.objectweb.asm.commons.Remapper;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
 public class SimpleRemapper extends Remapper {
-    private Mapping mapping;
+    private ReadableMapping mapping;
     private InheritanceProvider inheritanceProvider;
+    // Resolved member names by owner, name and descriptor, so each member's hierarchy is only walked once
+    private Map<String, Map<String, Map<String, String>>> fieldCache = new ConcurrentHashMap<>();
+    private Map<String, Map<String, Map<String, String>>> methodCache = new ConcurrentHashMap<>();
+    private LongAdder cacheHits = new LongAdder();
+    private LongAdder cacheMisses = new LongAdder();
+    private RemapStats stats;
+    private RemapListener listener;
+
+    public SimpleRemapper(ReadableMapping mapping, InheritanceProvider inheritanceProvider) {
+        this(mapping, inheritanceProvider, new RemapStats(), RemapListener.NONE);
+    }
 
-    public SimpleRemapper(Mapping mapping, InheritanceProvider inheritanceProvider) {
+    public SimpleRemapper(ReadableMapping mapping, InheritanceProvider inheritanceProvider, RemapStats stats, RemapListener listener) {
         this.mapping = mapping;
         this.inheritanceProvider = inheritanceProvider;
+        this.stats = stats;
+        this.listener = listener;
+    }
+
+    /**
+     * Creates a remapper with the mapping and inheritance of another one, which shares the member names the
+     * other one resolved, so that a jar can be remapped again without walking its hierarchy again
+     */
+    public SimpleRemapper(SimpleRemapper remapper, RemapStats stats, RemapListener listener) {
+        this(remapper.mapping, remapper.inheritanceProvider, stats, listener);
+        fieldCache = remapper.fieldCache;
+        methodCache = remapper.methodCache;
+    }
+
+    public InheritanceProvider getInheritanceProvider() {
+        return inheritanceProvider;
     }
 
     @Override
     public String map(String typeName) {
-        return mapping.mapClass(typeName);
+        String newName = mapping.getClass(typeName);
+        if (newName != null) return newName;
+        stats.classMappingMisses.increment();
+        return typeName;
     }
 
     @Override
     public String mapFieldName(String owner, String name, String desc) {
+        Map<String, String> cache = getCache(fieldCache, owner, name);
+        String result = cache.get(desc);
+        if (result != null) {
+            cacheHits.increment();
+            return result;
+        }
+        cacheMisses.increment();
+
+        result = resolveFieldName(owner, name, desc);
+        cache.put(desc, result);
+        return result;
+    }
+
+    @Override
+    public String mapMethodName(String owner, String name, String desc) {
+        Map<String, String> cache = getCache(methodCache, owner, name);
+        String result = cache.get(desc);
+        if (result != null) {
+            cacheHits.increment();
+            return result;
+        }
+        cacheMisses.increment();
+
+        result = resolveMethodName(owner, name, desc);
+        cache.put(desc, result);
+        return result;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    private static Map<String, String> getCache(Map<String, Map<String, Map<String, String>>> cache, String owner, String name) {
+        Map<String, Map<String, String>> ownerCache = cache.get(owner);
+        if (ownerCache == null) ownerCache = cache.computeIfAbsent(owner, k -> new ConcurrentHashMap<>());
+
+        Map<String, String> nameCache = ownerCache.get(name);
+        if (nameCache == null) nameCache = ownerCache.computeIfAbsent(name, k -> new ConcurrentHashMap<>());
+        return nameCache;
+    }
+
+    private String resolveFieldName(String owner, String name, String desc) {
         String newName = mapping.getField(owner, name, desc);
 
         for (String superclass : inheritanceProvider.getAllSuperclasses(owner)) {
@@ -25,20 +105,21 @@ public class SimpleRemapper extends Remapper {
                 String inheritedNewName = mapping.getField(superclass, name, desc);
                 if (inheritedNewName != null) {
                     if (newName != null && !inheritedNewName.equals(newName)) {
-                        System.err.println("Field inheritance problem: " + owner + "." + name + " " + desc +
-                                           " inherits " + superclass + "." + name + " " + desc +
-                                           " but " + newName + " != " + inheritedNewName);
+                        stats.inheritanceConflicts.increment();
+                        listener.warning("Field inheritance problem: " + owner + "." + name + " " + desc +
+                                         " inherits " + superclass + "." + name + " " + desc +
+                                         " but " + newName + " != " + inheritedNewName);
                     }
                     return inheritedNewName;
                 }
             }
         }
         if (newName != null) return newName;
+        stats.memberMappingMisses.increment();
         return name;
     }
 
-    @Override
-    public String mapMethodName(String owner, String name, String desc) {
+    private String resolveMethodName(String owner, String name, String desc) {
         String newName = mapping.getMethod(owner, name, desc);
 
         for (String superclass : inheritanceProvider.getAllSuperclasses(owner)) {
@@ -47,9 +128,10 @@ public class SimpleRemapper extends Remapper {
                     String inheritedNewName = mapping.getMethod(superclass, name, desc);
                     if (inheritedNewName != null) {
                         if (newName != null && !inheritedNewName.equals(newName)) {
-                            System.err.println("Method inheritance problem: " + owner + "." + name + desc +
-                                               " inherits " + superclass + "." + name + desc +
-                                               " but " + newName + " != " + inheritedNewName);
+                            stats.inheritanceConflicts.increment();
+                            listener.warning("Method inheritance problem: " + owner + "." + name + desc +
+                                             " inherits " + superclass + "." + name + desc +
+                                             " but " + newName + " != " + inheritedNewName);
                         }
                         return inheritedNewName;
                     }
@@ -57,6 +139,7 @@ public class SimpleRemapper extends Remapper {
             }
         }
         if (newName != null) return newName;
+        stats.memberMappingMisses.increment();
         return name;
     }
 }
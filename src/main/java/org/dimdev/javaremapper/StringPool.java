@@ -0,0 +1,64 @@
+package org.dimdev.javaremapper;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The string pool of binary mappings and inheritance snapshots, and the hash table helpers they share.
+ * Strings are stored as their length followed by their UTF-16 chars, so they can be compared with lookup
+ * keys without decoding them.
+ */
+final class StringPool {
+    private final int baseOffset;
+    private final Map<String, Integer> offsets = new HashMap<>();
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(bytes);
+
+    /** Creates an empty pool that will be written at the given offset, which must not be 0 **/
+    StringPool(int baseOffset) {
+        this.baseOffset = baseOffset;
+    }
+
+    /** Adds a string if it isn't in the pool yet, and returns its offset **/
+    int add(String string) throws IOException {
+        Integer offset = offsets.get(string);
+        if (offset != null) return offset;
+
+        offset = baseOffset + pool.size();
+        offsets.put(string, offset);
+        pool.writeInt(string.length());
+        pool.writeChars(string);
+        return offset;
+    }
+
+    int size() {
+        return pool.size();
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        bytes.writeTo(out);
+    }
+
+    static boolean equals(ByteBuffer buffer, int offset, String value) {
+        int length = buffer.getInt(offset);
+        if (length != value.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer.getChar(offset + 4 + i * 2) != value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    static String read(ByteBuffer buffer, int offset) {
+        char[] chars = new char[buffer.getInt(offset)];
+        for (int i = 0; i < chars.length; i++) chars[i] = buffer.getChar(offset + 4 + i * 2);
+        return new String(chars);
+    }
+
+    /** Spreads the bits of a hash, to pick the first slot of a key in a power-of-two sized table **/
+    static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
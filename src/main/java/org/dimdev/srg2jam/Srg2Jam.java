@@ -1,70 +1,90 @@
 package org.dimdev.srg2jam;
 
+import org.dimdev.javaremapper.Futures;
+import org.dimdev.javaremapper.LineTokenizer;
 import org.dimdev.javaremapper.Mapping;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public final class Srg2Jam {
+    /** Converts a MCP config folder to notch-srg.jam and notch-mcp.jam in the working directory **/
     public static void convert(File mcpDir) throws IOException {
-        // Read CSVs
-        Map<String, String> fieldSrgMcpMap = readCSV(new File(mcpDir, "fields.csv"));
-        Map<String, String> methodSrgMcpMap = readCSV(new File(mcpDir, "methods.csv"));
-        Map<String, String> paramSrgMcpMap = readCSV(new File(mcpDir, "params.csv"));
-
-        // Read static_methods.txt
-        Set<String> staticMethodSrgNames = new HashSet<>();
-        try (FileInputStream inputStream = new FileInputStream(new File(mcpDir, "static_methods.txt"))) {
-            Scanner scanner = new Scanner(inputStream);
-            while (scanner.hasNextLine()) staticMethodSrgNames.add(scanner.nextLine());
-        }
-
-        Mapping srgMappings = new Mapping();
-        Mapping mcpMappings = new Mapping();
-
-        // Read joined.srg
-        Map<String, String> reverseClassNameMap = new HashMap<>(); // For joined.exc
-        try (FileInputStream inputStream = new FileInputStream(new File(mcpDir, "joined.srg"))) {
-            Scanner scanner = new Scanner(inputStream);
-
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                String[] entry = line.split(" ");
-                switch (entry[0]) {
-                    case "PK:": {
-                        break;
-                    }
-                    case "CL:": {
-                        srgMappings.addClass(entry[1], entry[2]);
-                        mcpMappings.addClass(entry[1], entry[2]);
-                        reverseClassNameMap.put(entry[2], entry[1]);
-                        break;
-                    }
-                    case "FD:": {
-                        int lastSlash = entry[1].lastIndexOf('/');
-                        String className = entry[1].substring(0, lastSlash);
-                        String fieldName = entry[1].substring(lastSlash + 1);
-                        String srgName = entry[2].substring(entry[2].lastIndexOf('/') + 1);
+        convert(mcpDir, new File("."), false);
+    }
+
+    /**
+     * Converts a MCP config folder to notch-srg and notch-mcp mappings in the output directory. JAM files are
+     * written while joined.srg is read, so that only the CSVs and class names are kept in memory. Binary
+     * mapping files (.bin) need all entries to build their tables, so they're written at the end.
+     */
+    public static void convert(File mcpDir, File outputDir, boolean binary) throws IOException {
+        // Read the CSVs and static_methods.txt in parallel
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        Map<String, String> fieldSrgMcpMap;
+        Map<String, String> methodSrgMcpMap;
+        Map<String, String> paramSrgMcpMap;
+        Set<String> staticMethodSrgNames;
+        try {
+            Future<Map<String, String>> fields = workers.submit(() -> readCSV(new File(mcpDir, "fields.csv")));
+            Future<Map<String, String>> methods = workers.submit(() -> readCSV(new File(mcpDir, "methods.csv")));
+            Future<Map<String, String>> params = workers.submit(() -> readCSV(new File(mcpDir, "params.csv")));
+            Future<Set<String>> staticMethods = workers.submit(() -> readLines(new File(mcpDir, "static_methods.txt")));
+            fieldSrgMcpMap = Futures.waitFor(fields);
+            methodSrgMcpMap = Futures.waitFor(methods);
+            paramSrgMcpMap = Futures.waitFor(params);
+            staticMethodSrgNames = Futures.waitFor(staticMethods);
+        } finally {
+            workers.shutdownNow();
+        }
+
+        try (MappingOutput srgMappings = createOutput(outputDir, "notch-srg", binary);
+             MappingOutput mcpMappings = createOutput(outputDir, "notch-mcp", binary)) {
+            // Read joined.srg
+            Map<String, String> reverseClassNameMap = new HashMap<>(); // For joined.exc
+            try (Reader reader = new BufferedReader(new FileReader(new File(mcpDir, "joined.srg")))) {
+                LineTokenizer tokenizer = new LineTokenizer(reader, ' ');
+
+                while (tokenizer.nextLine()) {
+                    if (tokenizer.tokenEquals(0, "CL:")) {
+                        checkTokenCount(tokenizer, 3);
+                        srgMappings.addClass(tokenizer.getToken(1), tokenizer.getToken(2));
+                        mcpMappings.addClass(tokenizer.getToken(1), tokenizer.getToken(2));
+                        reverseClassNameMap.put(tokenizer.getToken(2), tokenizer.getToken(1));
+                    } else if (tokenizer.tokenEquals(0, "FD:")) {
+                        checkTokenCount(tokenizer, 3);
+                        String fullName = tokenizer.getToken(1);
+                        int lastSlash = fullName.lastIndexOf('/');
+                        String className = fullName.substring(0, lastSlash);
+                        String fieldName = fullName.substring(lastSlash + 1);
+                        String srgFullName = tokenizer.getToken(2);
+                        String srgName = srgFullName.substring(srgFullName.lastIndexOf('/') + 1);
                         String mcpName = fieldSrgMcpMap.getOrDefault(srgName, srgName);
                         srgMappings.addField(className, fieldName, "*", srgName);
                         mcpMappings.addField(className, fieldName, "*", mcpName);
-                        break;
-                    }
-                    case "MD:": {
-                        int lastSlash = entry[1].lastIndexOf('/');
-                        String className = entry[1].substring(0, lastSlash);
-                        String methodName = entry[1].substring(lastSlash + 1);
-                        String srgName = entry[3].substring(entry[3].lastIndexOf('/') + 1);
+                    } else if (tokenizer.tokenEquals(0, "MD:")) {
+                        checkTokenCount(tokenizer, 4);
+                        String fullName = tokenizer.getToken(1);
+                        int lastSlash = fullName.lastIndexOf('/');
+                        String className = fullName.substring(0, lastSlash);
+                        String methodName = fullName.substring(lastSlash + 1);
+                        String srgFullName = tokenizer.getToken(3);
+                        String srgName = srgFullName.substring(srgFullName.lastIndexOf('/') + 1);
                         String mcpName = methodSrgMcpMap.getOrDefault(srgName, srgName);
-                        String descriptor = entry[2];
+                        String descriptor = tokenizer.getToken(2);
                         srgMappings.addMethod(className, methodName, descriptor, srgName);
                         mcpMappings.addMethod(className, methodName, descriptor, mcpName);
 
-                        if (!srgName.startsWith("func_")) break;
-                        String id = srgName.split("_")[1];
+                        if (!srgName.startsWith("func_")) continue;
+                        int idEnd = srgName.indexOf('_', 5);
+                        String id = srgName.substring(5, idEnd < 0 ? srgName.length() : idEnd);
                         int index = 0;
                         for (int position : getParamPositions(descriptor, staticMethodSrgNames.contains(srgName))) {
                             String srgParamName = "p_" + id + "_" + position + "_";
@@ -73,44 +93,55 @@ public final class Srg2Jam {
                             mcpMappings.addParameter(className, methodName, descriptor, index, mcpParamName);
                             index++;
                         }
-                        break;
                     }
                 }
             }
-        }
-
-        // Read joined.exc for constructor params
-        try (FileInputStream inputStream = new FileInputStream(new File(mcpDir, "joined.exc"))) {
-            Scanner scanner = new Scanner(inputStream);
 
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                if (line.startsWith("#")) continue; // Comments
-                if (line.startsWith("max_constructor_index")) continue;
+            // Read joined.exc for constructor params
+            try (BufferedReader reader = new BufferedReader(new FileReader(new File(mcpDir, "joined.exc")))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("#")) continue; // Comments
+                    if (line.startsWith("max_constructor_index")) continue;
 
-                String[] keyAndValue = line.split("=");
-                String[] classAndMethod = keyAndValue[0].split("\\.");
-                int descriptorIndex = classAndMethod[1].indexOf('(');
-                String methodName = classAndMethod[1].substring(0, descriptorIndex);
-                if (!methodName.equals("<init>")) continue;
+                    // class.<init>(descriptor)=exceptions|params
+                    int equals = line.indexOf('=');
+                    int dot = line.indexOf('.');
+                    int descriptorIndex = line.indexOf('(', dot);
+                    if (equals < 0 || dot < 0 || descriptorIndex < 0 || descriptorIndex > equals) continue;
+                    if (!line.startsWith("<init>", dot + 1) || descriptorIndex != dot + 7) continue;
 
-                String className = reverseClassNameMap.getOrDefault(classAndMethod[0], classAndMethod[0]);
-                String descriptor = translateDescriptor(classAndMethod[1].substring(descriptorIndex), reverseClassNameMap);
+                    int bar = line.indexOf('|', equals);
+                    if (bar < 0 || bar == line.length() - 1) continue;
 
-                String[] params = keyAndValue[1].split("\\|")[1].split(",");
+                    String originalClassName = line.substring(0, dot);
+                    String className = reverseClassNameMap.getOrDefault(originalClassName, originalClassName);
+                    String descriptor = translateDescriptor(line.substring(descriptorIndex, equals), reverseClassNameMap);
 
-                int index = 0;
-                for (String srgParamName : params) {
-                    String mcpParamName = paramSrgMcpMap.getOrDefault(srgParamName, srgParamName);
-                    srgMappings.addParameter(className, "<init>", descriptor, index, srgParamName);
-                    mcpMappings.addParameter(className, "<init>", descriptor, index, mcpParamName);
-                    index++;
+                    int index = 0;
+                    int start = bar + 1;
+                    while (start < line.length()) {
+                        int end = line.indexOf(',', start);
+                        if (end < 0) end = line.length();
+                        String srgParamName = line.substring(start, end);
+                        if (!srgParamName.isEmpty()) { // Parameters without a name, or a trailing comma
+                            String mcpParamName = paramSrgMcpMap.getOrDefault(srgParamName, srgParamName);
+                            srgMappings.addParameter(className, "<init>", descriptor, index, srgParamName);
+                            mcpMappings.addParameter(className, "<init>", descriptor, index, mcpParamName);
+                        }
+                        index++;
+                        start = end + 1;
+                    }
                 }
             }
+
+            srgMappings.finish();
+            mcpMappings.finish();
         }
+    }
 
-        srgMappings.writeToJAM(new FileWriter(new File("notch-srg.jam")));
-        mcpMappings.writeToJAM(new FileWriter(new File("notch-mcp.jam")));
+    private static MappingOutput createOutput(File outputDir, String name, boolean binary) throws IOException {
+        return binary ? new BinaryWriter(new File(outputDir, name + ".bin")) : new JAMWriter(new File(outputDir, name + ".jam"));
     }
 
     private static List<Integer> getParamPositions(String descriptor, boolean isStatic) {
@@ -151,18 +182,133 @@ public final class Srg2Jam {
     }
 
     private static Map<String, String> readCSV(File file) throws IOException {
-        try (FileInputStream inputStream = new FileInputStream(file)) {
-            Scanner scanner = new Scanner(inputStream);
-            scanner.nextLine(); // skip header
-
-            Map<String, String> results = new LinkedHashMap<>();
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                String[] entry = line.split(",");
-                results.put(entry[0], entry[1]);
+        try (Reader reader = new BufferedReader(new FileReader(file))) {
+            LineTokenizer tokenizer = new LineTokenizer(reader, ',');
+            tokenizer.nextLine(); // skip header
+
+            Map<String, String> results = new HashMap<>();
+            while (tokenizer.nextLine()) {
+                checkTokenCount(tokenizer, 2);
+                results.put(tokenizer.getToken(0), tokenizer.getToken(1));
             }
 
             return results;
         }
     }
+
+    private static Set<String> readLines(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            Set<String> results = new HashSet<>();
+            String line;
+            while ((line = reader.readLine()) != null) results.add(line);
+            return results;
+        }
+    }
+
+    private static void checkTokenCount(LineTokenizer tokenizer, int count) throws IOException {
+        if (tokenizer.getTokenCount() < count) {
+            throw tokenizer.error("Expected " + count + " tokens but found " + tokenizer.getTokenCount());
+        }
+    }
+
+    /** Where converted entries are written to **/
+    private interface MappingOutput extends Closeable {
+        void addClass(String className, String newName);
+        void addField(String className, String fieldName, String fieldDescriptor, String newName);
+        void addMethod(String className, String methodName, String methodDescriptor, String newName);
+        void addParameter(String className, String methodName, String methodDescriptor, int index, String newName);
+
+        /** Finishes the file once all entries have been added **/
+        void finish() throws IOException;
+    }
+
+    /**
+     * Writes entries to a JAM file as they're added instead of keeping them. They're written to a temporary
+     * file, which replaces the JAM file once it's finished, so that a failed conversion doesn't leave a
+     * partial JAM file behind.
+     */
+    private static class JAMWriter implements MappingOutput {
+        private final Path file;
+        private final Path temporaryFile;
+        private final PrintWriter writer;
+
+        public JAMWriter(File file) throws IOException {
+            this.file = file.toPath();
+            temporaryFile = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp");
+            writer = new PrintWriter(Files.newBufferedWriter(temporaryFile, Charset.defaultCharset()));
+        }
+
+        @Override
+        public void addClass(String className, String newName) {
+            writer.println("CL " + className + " " + newName);
+        }
+
+        @Override
+        public void addField(String className, String fieldName, String fieldDescriptor, String newName) {
+            writer.println("FD " + className + " " + fieldName + " " + fieldDescriptor + " " + newName);
+        }
+
+        @Override
+        public void addMethod(String className, String methodName, String methodDescriptor, String newName) {
+            writer.println("MD " + className + " " + methodName + " " + methodDescriptor + " " + newName);
+        }
+
+        @Override
+        public void addParameter(String className, String methodName, String methodDescriptor, int index, String newName) {
+            writer.println("MP " + className + " " + methodName + " " + methodDescriptor + " " + index + " " + newName);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writer.close();
+            if (writer.checkError()) throw new IOException("Failed to write JAM file");
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /** Keeps the entries in a mapping, since binary files need all of them to build their tables **/
+    private static class BinaryWriter implements MappingOutput {
+        private final File file;
+        private final Mapping mapping = new Mapping();
+
+        public BinaryWriter(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void addClass(String className, String newName) {
+            mapping.addClass(className, newName);
+        }
+
+        @Override
+        public void addField(String className, String fieldName, String fieldDescriptor, String newName) {
+            mapping.addField(className, fieldName, fieldDescriptor, newName);
+        }
+
+        @Override
+        public void addMethod(String className, String methodName, String methodDescriptor, String newName) {
+            mapping.addMethod(className, methodName, methodDescriptor, newName);
+        }
+
+        @Override
+        public void addParameter(String className, String methodName, String methodDescriptor, int index, String newName) {
+            mapping.addParameter(className, methodName, methodDescriptor, index, newName);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            try (OutputStream outputStream = new FileOutputStream(file)) {
+                mapping.writeToBinary(outputStream);
+            }
+        }
+
+        @Override
+        public void close() {}
+    }
 }